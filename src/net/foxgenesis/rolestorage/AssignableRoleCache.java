@@ -0,0 +1,121 @@
+package net.foxgenesis.rolestorage;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+
+/**
+ * Cache of the roles of each guild that can be stored and restored. Entries are
+ * computed on first use and must be invalidated whenever the roles of a guild,
+ * their positions or the roles of the bot member change.
+ * 
+ * @author Ashley
+ *
+ */
+public class AssignableRoleCache {
+
+	/**
+	 * Computed role sets by guild ID
+	 */
+	private final ConcurrentHashMap<Long, GuildRoles> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * Get the role sets of a guild, computing them if they are not cached.
+	 * 
+	 * @param guild - guild to get the role sets of
+	 * 
+	 * @return The {@link GuildRoles} of {@code guild}
+	 */
+	public GuildRoles get(Guild guild) {
+		return cache.computeIfAbsent(guild.getIdLong(), id -> compute(guild));
+	}
+
+	/**
+	 * Remove the cached role sets of a guild.
+	 * 
+	 * @param guildID - ID of the guild to invalidate
+	 */
+	public void invalidate(long guildID) {
+		cache.remove(guildID);
+	}
+
+	/**
+	 * Compute the role sets of a guild.
+	 * 
+	 * @param guild - guild to compute
+	 * 
+	 * @return The computed {@link GuildRoles}
+	 */
+	private static GuildRoles compute(Guild guild) {
+		Member bot = guild.getSelfMember();
+		boolean canManage = bot.hasPermission(Permission.MANAGE_ROLES);
+
+		long[] storable = new long[guild.getRoles().size()];
+		long[] assignable = new long[storable.length];
+		int storableCount = 0, assignableCount = 0;
+
+		for (Role role : guild.getRoles()) {
+			if (role.isManaged() || role.isPublicRole())
+				continue;
+
+			storable[storableCount++] = role.getIdLong();
+			if (canManage && bot.canInteract(role))
+				assignable[assignableCount++] = role.getIdLong();
+		}
+
+		storable = Arrays.copyOf(storable, storableCount);
+		assignable = Arrays.copyOf(assignable, assignableCount);
+		Arrays.sort(storable);
+		Arrays.sort(assignable);
+
+		return new GuildRoles(storable, assignable);
+	}
+
+	/**
+	 * Sorted role ID sets of a guild.
+	 * 
+	 * @author Ashley
+	 *
+	 * @param storable   - IDs of all roles that are not managed
+	 * @param assignable - IDs of all roles that are not managed and can be given by
+	 *                   the bot
+	 */
+	public record GuildRoles(long[] storable, long[] assignable) {
+
+		/**
+		 * Check if a role should be stored.
+		 * 
+		 * @param roleID - ID of the role
+		 * 
+		 * @return Returns {@code true} if the role is not managed
+		 */
+		public boolean isStorable(long roleID) {
+			return Arrays.binarySearch(storable, roleID) >= 0;
+		}
+
+		/**
+		 * Check if a role can be given back to a member.
+		 * 
+		 * @param roleID - ID of the role
+		 * 
+		 * @return Returns {@code true} if the role is not managed and the bot can
+		 *         assign it
+		 */
+		public boolean isAssignable(long roleID) {
+			return Arrays.binarySearch(assignable, roleID) >= 0;
+		}
+
+		/**
+		 * Check if the bot can assign any role in the guild.
+		 * 
+		 * @return Returns {@code true} if at least one role is assignable
+		 */
+		public boolean hasAssignable() {
+			return assignable.length > 0;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package net.foxgenesis.rolestorage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Controller used to tune the batch size of {@link BatchWorker BatchWorkers}
+ * based on the observed write latency. Workers record every top-level batch
+ * exactly once, no matter how many times it was retried or bisected. The batch
+ * size is adjusted using an additive-increase/multiplicative-decrease strategy:
+ * <ul>
+ * <li>A batch that hit a transient error, or one that took longer than the
+ * target latency, halves the batch size.</li>
+ * <li>A full batch that finished within the target latency increases the batch
+ * size by the minimum batch size.</li>
+ * <li>Anything else leaves the batch size unchanged.</li>
+ * </ul>
+ * The batch size always stays within the configured bounds. Batches that only
+ * failed because of bad rows must not be recorded, since they say nothing about
+ * how much the database can handle.
+ * 
+ * @author Ashley
+ *
+ */
+public class BatchSizeController {
+
+	/**
+	 * Logger
+	 */
+	private static final Logger logger = LoggerFactory.getLogger("BatchSizeController");
+
+	/**
+	 * Current batch size
+	 */
+	private final AtomicInteger batchSize;
+
+	/**
+	 * Lower bound of the batch size
+	 */
+	private final int min;
+
+	/**
+	 * Upper bound of the batch size
+	 */
+	private final int max;
+
+	/**
+	 * Target latency of a batch in nanoseconds
+	 */
+	private final long targetLatency;
+
+	/**
+	 * Number of times the batch size was increased
+	 */
+	private final LongAdder increases = new LongAdder();
+
+	/**
+	 * Number of times the batch size was decreased
+	 */
+	private final LongAdder decreases = new LongAdder();
+
+	/**
+	 * Number of times the batch size was left unchanged
+	 */
+	private final LongAdder holds = new LongAdder();
+
+	/**
+	 * Number of batches that hit a transient error
+	 */
+	private final LongAdder errors = new LongAdder();
+
+	/**
+	 * Latency of the last recorded batch in nanoseconds
+	 */
+	private volatile long lastLatency;
+
+	/**
+	 * Last adjustment decision
+	 */
+	private volatile Decision lastDecision = Decision.HOLD;
+
+	/**
+	 * Create a new controller using the bounds and target latency of the provided
+	 * settings.
+	 * 
+	 * @param settings - worker settings to use
+	 */
+	public BatchSizeController(WorkerSettings settings) {
+		this.min = settings.minBatchSize();
+		this.max = settings.maxBatchSize();
+		this.targetLatency = TimeUnit.MILLISECONDS.toNanos(settings.targetLatency());
+		this.batchSize = new AtomicInteger(Math.max(min, Math.min(max, settings.batchSize())));
+	}
+
+	/**
+	 * Record the outcome of a batch and adjust the batch size.
+	 * 
+	 * @param rows    - number of rows in the batch
+	 * @param latency - time taken to execute the batch in nanoseconds
+	 * @param failed  - whether the batch hit a transient error, such as a
+	 *                deadlock, lock wait timeout or lost connection
+	 * 
+	 * @return The decision that was made
+	 */
+	public Decision record(int rows, long latency, boolean failed) {
+		lastLatency = latency;
+		if (failed)
+			errors.increment();
+
+		int current = batchSize.get();
+		Decision decision;
+
+		if (failed || latency > targetLatency)
+			decision = current > min ? Decision.DECREASE : Decision.HOLD;
+		else if (rows >= current)
+			decision = current < max ? Decision.INCREASE : Decision.HOLD;
+		else
+			decision = Decision.HOLD;
+
+		switch (decision) {
+			case INCREASE -> {
+				int size = batchSize.updateAndGet(s -> Math.min(max, s + min));
+				increases.increment();
+				logger.trace("Batch of {} took {} ms. Increasing batch size to {}", rows,
+						TimeUnit.NANOSECONDS.toMillis(latency), size);
+			}
+			case DECREASE -> {
+				int size = batchSize.updateAndGet(s -> Math.max(min, s / 2));
+				decreases.increment();
+				logger.debug("Batch of {} {} after {} ms. Decreasing batch size to {}", rows,
+						failed ? "failed" : "finished", TimeUnit.NANOSECONDS.toMillis(latency), size);
+			}
+			case HOLD -> holds.increment();
+		}
+
+		lastDecision = decision;
+		return decision;
+	}
+
+	/**
+	 * Get the current batch size.
+	 * 
+	 * @return The number of items required to trigger a batch
+	 */
+	public int getBatchSize() {
+		return batchSize.get();
+	}
+
+	/**
+	 * Get the number of times the batch size was increased.
+	 * 
+	 * @return The number of increase decisions
+	 */
+	public long getIncreaseCount() {
+		return increases.sum();
+	}
+
+	/**
+	 * Get the number of times the batch size was decreased.
+	 * 
+	 * @return The number of decrease decisions
+	 */
+	public long getDecreaseCount() {
+		return decreases.sum();
+	}
+
+	/**
+	 * Get the number of times the batch size was left unchanged.
+	 * 
+	 * @return The number of hold decisions
+	 */
+	public long getHoldCount() {
+		return holds.sum();
+	}
+
+	/**
+	 * Get the number of batches that hit a transient error.
+	 * 
+	 * @return The number of failed batches recorded
+	 */
+	public long getErrorCount() {
+		return errors.sum();
+	}
+
+	/**
+	 * Get the latency of the last recorded batch.
+	 * 
+	 * @return The latency in milliseconds
+	 */
+	public long getLastLatency() {
+		return TimeUnit.NANOSECONDS.toMillis(lastLatency);
+	}
+
+	/**
+	 * Get the last adjustment decision.
+	 * 
+	 * @return The last {@link Decision}
+	 */
+	public Decision getLastDecision() {
+		return lastDecision;
+	}
+
+	/**
+	 * Decision made after a batch has been recorded.
+	 * 
+	 * @author Ashley
+	 *
+	 */
+	public enum Decision {
+		/**
+		 * Batch size was increased
+		 */
+		INCREASE,
+		/**
+		 * Batch size was decreased
+		 */
+		DECREASE,
+		/**
+		 * Batch size was left unchanged
+		 */
+		HOLD
+	}
+}
@@ -1,14 +1,17 @@
 package net.foxgenesis.rolestorage;
 
 import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Consumer;
-import java.util.function.Supplier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,6 +23,22 @@ import net.foxgenesis.executor.PrefixedThreadFactory;
 /**
  * Class used to store insert/delete batch data and then execute when a
  * threshold is reached.
+ * <p>
+ * Producers never take a lock. Rows are pushed onto the lock-free queues held
+ * by {@link BatchData} as chunks of {@code [memberID, guildID, roleID]} triples
+ * and the worker thread is only unparked when the number of pending rows
+ * crosses the threshold. The worker is the single consumer of both queues, so
+ * all database I/O happens outside of anything a producer can block on. Chunks
+ * are copied into a reused buffer, split across batches where needed.
+ * </p>
+ * <p>
+ * Each batch is written inside of its own transaction. Transient failures
+ * (deadlocks, lock timeouts and lost connections) are retried with an
+ * exponential backoff, reconnecting when the worker connection has died. A
+ * batch that keeps failing with transient errors is dropped whole. A batch
+ * rejected for its content is bisected so that a single bad row only drops
+ * itself instead of the entire batch.
+ * </p>
  * 
  * @author Ashley
  *
@@ -36,6 +55,11 @@ public class BatchWorker implements RoleBatchWorker {
 	 */
 	private static final ThreadFactory pool = new PrefixedThreadFactory("RoleStorage");
 
+	/**
+	 * Timeout in seconds used when validating the worker connection
+	 */
+	private static final int CONNECTION_TIMEOUT = 2;
+
 	/**
 	 * Batch data to work with
 	 */
@@ -55,16 +79,54 @@ public class BatchWorker implements RoleBatchWorker {
 	private AtomicBoolean running = new AtomicBoolean();
 
 	/**
-	 * Conditional for whether the worker thread is currently processing the queues
+	 * Conditional for whether the queues should be flushed
 	 */
 
-	private AtomicBoolean processing = new AtomicBoolean(false);
+	private AtomicBoolean flush = new AtomicBoolean();
 
 	/**
-	 * Conditional for whether the queues should be flushed
+	 * Number of rows currently waiting in both queues
 	 */
 
-	private AtomicBoolean flush = new AtomicBoolean();
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * Conditional for whether the worker thread is about to park or is parked
+	 */
+
+	private final AtomicBoolean waiting = new AtomicBoolean();
+
+	/**
+	 * Dedicated connection of the worker thread. Only accessed by the worker
+	 * thread.
+	 */
+
+	private Connection connection;
+
+	/**
+	 * Read position in the insert queue. Only accessed by the worker thread.
+	 */
+
+	private final Cursor insertCursor;
+
+	/**
+	 * Read position in the remove queue. Only accessed by the worker thread.
+	 */
+
+	private final Cursor removeCursor;
+
+	/**
+	 * Buffer batches are assembled in. Only accessed by the worker thread.
+	 */
+
+	private long[] buffer = new long[0];
+
+	/**
+	 * Transient retries left for the batch being written, shared by all of its
+	 * halves. Only accessed by the worker thread.
+	 */
+
+	private int retriesLeft;
 
 	/**
 	 * Create a new instance using the provided {@link BatchData}.
@@ -74,120 +136,358 @@ public class BatchWorker implements RoleBatchWorker {
 	BatchWorker(BatchData<Queue<long[]>> batchData) {
 		this.batchData = Objects.requireNonNull(batchData);
 		this.thread = pool.newThread(this::run);
+		this.insertCursor = new Cursor(batchData.insertQueue());
+		this.removeCursor = new Cursor(batchData.removeQueue());
 	}
 
 	/**
 	 * Runnable method for worker thread.
 	 */
 	private void run() {
-		try (Connection conn = batchData.source();
-				PreparedStatement insertStatement = conn.prepareStatement(batchData.insertStatement().get());
-				PreparedStatement removeStatement = conn.prepareStatement(batchData.removeStatement().get())) {
-			logger.debug("Worker ready");
-			running.set(true);
+		try {
+			connect();
+		} catch (SQLException e) {
+			logger.error("Unable to open worker connection. Will retry on first batch", e);
+		}
+
+		logger.debug("Worker ready");
+		running.set(true);
+		try {
 			// Main loop
 			while (running.get()) {
-				synchronized (batchData) {
-					try {
-						// Check if we have reached the threshold
-						while (!batchData.thresholdReached()) {
-
-							// We have not reached the threshold. Wait for notify
-							logger.trace("Waiting");
-							batchData.wait();
-
-							// Thread has woken up
-							if (flush.get()) {
-								logger.trace("Flushing queue...");
-								flush.set(false);
-								break;
-							} else if (batchData.thresholdReached()) {
-								logger.trace("Threshold reached ({}/{}). Executing batch...", batchData.size(),
-										batchData.threshold());
-							} else
-								logger.warn("Spurious wakup");
-						}
-					} catch (InterruptedException e) {
-						// Called when we want to halt execution of this thread
-						logger.trace("Worker interupt recieved (r={},f={},p={})!", running, flush, processing);
+				// Park until the threshold is crossed, a flush is requested or we are closed
+				while (running.get() && !flush.get() && pending.get() < batchData.threshold()) {
+					// Publish that we are waiting and check again so a producer can not miss us
+					waiting.set(true);
+					if (running.get() && !flush.get() && pending.get() < batchData.threshold()) {
+						logger.trace("Waiting");
+						LockSupport.park(this);
 					}
+					waiting.set(false);
 
-					// Process both queues
-					process(insertStatement, removeStatement);
+					// Parking returns immediately while interrupted
+					if (Thread.interrupted())
+						throw new InterruptedException();
 				}
+
+				// Flush everything if requested
+				boolean flushing = flush.getAndSet(false);
+				if (flushing)
+					logger.trace("Flushing queue...");
+				else
+					logger.trace("Threshold reached ({}/{}). Executing batch...", pending.get(),
+							batchData.threshold());
+
+				// Process both queues
+				process(flushing);
 			}
 
+			// We may have been closed while processing. Write everything that is left
 			logger.debug("Stopping worker...");
-		} catch (SQLException e1) {
-			logger.error("Exception in worker thread", e1);
+			process(true);
+		} catch (InterruptedException e) {
+			logger.warn("Worker interrupted. Dropping {} pending statements", pending.get());
+		} finally {
+			running.set(false);
+			disconnect();
 		}
 	}
 
 	/***
 	 * Process both queues.
 	 * 
-	 * @param insert - prepared insert statement
-	 * @param delete - prepared delete statement
+	 * @param flush - should the queues be flushed
+	 * 
+	 * @throws InterruptedException If the worker was interrupted while waiting to
+	 *                              retry a batch
 	 */
-	private void process(PreparedStatement insert, PreparedStatement delete) {
+	private void process(boolean flush) throws InterruptedException {
 		// Process insert queue
-		processQueue(insert, batchData.insertQueue(), flush.get(), (statement, size, initialSize) -> {
-			logger.trace("Processing {} insert statements. (Queue Size = {})", size, initialSize);
-			statement.executeBatch();
-		}, error -> logger.error("Error while processing insert queue", error));
+		processQueue("insert", batchData.writer()::insert, insertCursor, flush);
 
 		// Process remove queue
-		processQueue(delete, batchData.removeQueue(), flush.get(), (statement, size, initialSize) -> {
-			logger.trace("Processing {} remove statements. (Queue Size = {})", size, initialSize);
-			statement.executeBatch();
-		}, error -> logger.error("Error while processing remove queue", error));
+		processQueue("remove", batchData.writer()::remove, removeCursor, flush);
+	}
 
-		processing.set(false);
+	/**
+	 * Process a queue containing batch data for a write operation. Every batch
+	 * holds at most {@code threshold} rows and is written in its own transaction.
+	 * If {@code flush} is {@code true}, batches are written until every row that
+	 * was pending when the flush started has been written. This method must only
+	 * be called from the worker thread as it is the sole consumer of the queues.
+	 * 
+	 * @param name      - name of the queue used for logging
+	 * @param operation - write operation to use
+	 * @param cursor    - read position of the queue containing batch data
+	 * @param flush     - should the queue be flushed
+	 * 
+	 * @throws InterruptedException If the worker was interrupted while waiting to
+	 *                              retry a batch
+	 */
+	private void processQueue(String name, BatchOperation operation, Cursor cursor, boolean flush)
+			throws InterruptedException {
+		// Rows added during a flush are left for later so that a flush always ends
+		int remaining = flush ? pending.get() : batchData.threshold();
+
+		while (remaining > 0) {
+			int initialSize = pending.get();
+			RoleBatch items = take(cursor, Math.min(remaining, batchData.threshold()));
+
+			if (items.size() == 0)
+				return;
+
+			logger.trace("Processing {} {} statements. (Pending = {})", items.size(), name, initialSize);
+			long start = System.nanoTime();
+			Outcome outcome = writeBatch(name, operation, items);
+			long latency = System.nanoTime() - start;
+
+			// Only report database pressure. Rows rejected for their content say nothing
+			// about how large a batch the database can handle
+			switch (outcome) {
+				case WRITTEN -> batchData.controller().record(items.size(), latency, false);
+				case CONTENDED -> batchData.controller().record(items.size(), latency, true);
+				case REJECTED -> {}
+			}
+			remaining -= items.size();
+		}
 	}
 
 	/**
-	 * Process a queue containing batch data for a prepared statement. If
-	 * {@code flush} is {@code true}, the threshold will be ignored.
+	 * Copy up to {@code size} rows from a queue into the batch buffer. A chunk
+	 * that does not fit is left at the head of the queue and continued by the
+	 * next batch.
+	 * 
+	 * @param cursor - read position of the queue
+	 * @param size   - maximum number of rows to take
 	 * 
-	 * @param statement    - prepared statement to use
-	 * @param queue        - queue containing batch data
-	 * @param flush        - should the queue be flushed
-	 * @param process      - callback to execute the prepared statement
-	 * @param errorHandler - error handler
+	 * @return A {@link RoleBatch} over the batch buffer
 	 */
-	private void processQueue(PreparedStatement statement, Queue<long[]> queue, boolean flush,
-			StatementConsumer process, Consumer<SQLException> errorHandler) {
-		try {
-			// Check if the queue contains any items along with race conditions
-			if (queue.size() > 0)
-				synchronized (queue) {
-					if (queue.size() > 0) {
-
-						int initialSize = queue.size();
-						int size = 0;
-						long[] item = null;
-
-						// Loop until we finish all items or the threshold is reached
-						while ((flush || size < batchData.threshold) && (item = queue.poll()) != null) {
-							statement.setLong(1, item[0]);
-							statement.setLong(2, item[1]);
-							statement.setLong(3, item[2]);
-							statement.addBatch();
-							size++;
-						}
-
-						// Pass data to callback
-						process.accept(statement, size, initialSize);
+	private RoleBatch take(Cursor cursor, int size) {
+		if (buffer.length < size * 3)
+			buffer = new long[size * 3];
+
+		int rows = 0;
+		while (rows < size) {
+			if (cursor.head == null) {
+				cursor.head = cursor.queue.poll();
+				cursor.offset = 0;
+
+				if (cursor.head == null)
+					break;
+			}
+
+			int count = Math.min(size - rows, (cursor.head.length - cursor.offset) / 3);
+			System.arraycopy(cursor.head, cursor.offset, buffer, rows * 3, count * 3);
+			rows += count;
+			cursor.offset += count * 3;
+
+			if (cursor.offset >= cursor.head.length)
+				cursor.head = null;
+		}
+
+		pending.addAndGet(-rows);
+		return new RoleBatch(buffer, 0, rows);
+	}
+
+	/**
+	 * Write a batch to the database. Transient errors are retried with an
+	 * exponential backoff up to {@link WorkerSettings#maxRetries()} times. If the
+	 * retries run out, the whole batch is dropped. If the batch is rejected for
+	 * its content, it is split in half and each half is written separately until
+	 * the offending row is isolated and dropped. The halves share the retries left
+	 * by the batch they were split from.
+	 * 
+	 * @param name      - name of the queue used for logging
+	 * @param operation - write operation to use
+	 * @param items     - rows to write
+	 * 
+	 * @return The {@link Outcome} of the batch, including all retries and halves
+	 * 
+	 * @throws InterruptedException If the worker was interrupted while waiting to
+	 *                              retry the batch
+	 */
+	private Outcome writeBatch(String name, BatchOperation operation, RoleBatch items)
+			throws InterruptedException {
+		retriesLeft = batchData.settings().maxRetries();
+		return write(name, operation, items);
+	}
+
+	/**
+	 * Write part of a batch, retrying transient errors while
+	 * {@link #retriesLeft} allows and bisecting rejected rows.
+	 * 
+	 * @param name      - name of the queue used for logging
+	 * @param operation - write operation to use
+	 * @param items     - rows to write
+	 * 
+	 * @return The {@link Outcome} of these rows, including all retries and halves
+	 * 
+	 * @throws InterruptedException If the worker was interrupted while waiting to
+	 *                              retry the rows
+	 */
+	private Outcome write(String name, BatchOperation operation, RoleBatch items) throws InterruptedException {
+		WorkerSettings settings = batchData.settings();
+		Outcome outcome = Outcome.WRITTEN;
+
+		while (true) {
+			try {
+				executeBatch(operation, items);
+				return outcome;
+			} catch (SQLException e) {
+				rollback();
+
+				// Make sure our connection is still usable
+				boolean connected = ensureConnected();
+
+				if (isTransient(e)) {
+					if (retriesLeft <= 0) {
+						logger.error("Retries exhausted. Dropping {} {} statements", items.size(), name, e);
+						return Outcome.CONTENDED;
 					}
+
+					int attempt = settings.maxRetries() - retriesLeft--;
+					long delay = settings.retryDelay() << Math.min(attempt, 16);
+					logger.warn("Transient error while writing {} {} statements (state={}). Retrying in {} ms [{}/{}]",
+							items.size(), name, e.getSQLState(), delay, attempt + 1, settings.maxRetries());
+
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException ie) {
+						logger.error("Interrupted while retrying. Dropping {} {} statements", items.size(), name);
+						throw ie;
+					}
+					outcome = Outcome.CONTENDED;
+					continue;
+				}
+
+				if (!connected) {
+					logger.error("Unable to reconnect. Dropping {} {} statements", items.size(), name, e);
+					return Outcome.CONTENDED;
+				}
+
+				outcome = outcome.and(Outcome.REJECTED);
+				if (items.size() > 1) {
+					int middle = items.size() / 2;
+					logger.warn("Batch of {} {} statements failed. Bisecting...", items.size(), name);
+					outcome = outcome.and(write(name, operation, items.subBatch(0, middle)));
+					outcome = outcome.and(write(name, operation, items.subBatch(middle, items.size())));
+				} else {
+					logger.error("Dropping {} statement {}", name, Arrays.toString(items.toArray()), e);
 				}
+				return outcome;
+			}
+		}
+	}
+
+	/**
+	 * Execute and commit a batch of rows using the provided operation.
+	 * 
+	 * @param operation - write operation to use
+	 * @param items     - rows to write
+	 * 
+	 * @throws SQLException Thrown if the batch failed to execute or commit
+	 */
+	private void executeBatch(BatchOperation operation, RoleBatch items) throws SQLException {
+		if (connection == null)
+			throw new SQLRecoverableException("Worker is not connected", "08003");
+
+		try {
+			operation.accept(items);
+			connection.commit();
+		} finally {
+			batchData.writer().finishTransaction();
+		}
+	}
+
+	/**
+	 * Open the worker connection and prepare the statements of the writer.
+	 * 
+	 * @throws SQLException Thrown if the connection could not be opened
+	 */
+	private void connect() throws SQLException {
+		disconnect();
+
+		connection = batchData.source().openConnection();
+		connection.setAutoCommit(false);
+		batchData.writer().open(connection);
+	}
+
+	/**
+	 * Check that the worker connection is still valid and reconnect if it is not.
+	 * 
+	 * @return Returns {@code true} if the worker has a valid connection
+	 */
+	private boolean ensureConnected() {
+		try {
+			if (connection != null && connection.isValid(CONNECTION_TIMEOUT))
+				return true;
+
+			logger.warn("Worker connection lost. Reconnecting...");
+			connect();
+			return true;
 		} catch (SQLException e) {
-			if (errorHandler != null)
-				errorHandler.accept(e);
-			else
-				e.printStackTrace();
+			logger.error("Failed to reconnect worker", e);
+			disconnect();
+			return false;
 		}
 	}
 
+	/**
+	 * Roll back the current transaction, ignoring any errors.
+	 */
+	private void rollback() {
+		try {
+			if (connection != null)
+				connection.rollback();
+		} catch (SQLException e) {
+			logger.debug("Failed to rollback transaction", e);
+		}
+	}
+
+	/**
+	 * Close the statements and connection of the worker, ignoring any errors.
+	 */
+	private void disconnect() {
+		batchData.writer().close();
+
+		try {
+			if (connection != null)
+				connection.close();
+		} catch (SQLException e) {
+			logger.debug("Error while closing worker connection", e);
+		}
+
+		connection = null;
+	}
+
+	/**
+	 * Check if an exception, or any of its causes, represents a transient error
+	 * that is worth retrying.
+	 * 
+	 * @param e - exception to check
+	 * 
+	 * @return Returns {@code true} if the batch should be retried
+	 */
+	static boolean isTransient(SQLException e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof SQLTransientException || t instanceof SQLRecoverableException)
+				return true;
+
+			if (t instanceof SQLException sql) {
+				String state = sql.getSQLState();
+
+				// Transaction rollback (deadlock/serialization) or connection exception
+				if (state != null && (state.startsWith("40") || state.startsWith("08")))
+					return true;
+
+				// MySQL lock wait timeout or deadlock
+				if (sql.getErrorCode() == 1205 || sql.getErrorCode() == 1213)
+					return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Start the worker thread.
 	 * 
@@ -206,10 +506,10 @@ public class BatchWorker implements RoleBatchWorker {
 
 	@Override
 	public synchronized void close() {
-		logger.trace("Sending worker interupt");
+		logger.trace("Sending worker shutdown");
 		flush.set(true);
 		running.set(false);
-		thread.interrupt();
+		LockSupport.unpark(thread);
 
 		try {
 			thread.join();
@@ -218,21 +518,65 @@ public class BatchWorker implements RoleBatchWorker {
 
 	@Override
 	public void flush() {
-		synchronized (batchData) {
-			logger.debug("Flagging worker for flushing");
-			flush.set(true);
-			batchData.notify();
-		}
+		logger.debug("Flagging worker for flushing");
+		flush.set(true);
+		LockSupport.unpark(thread);
 	}
 
 	@Override
 
 	public RoleBatchWorker addMemberRole(Member member, Role role) {
+		batchData.membershipFilter().add(member.getGuild().getIdLong(), member.getIdLong());
 		addToBatch(batchData.insertQueue,
 				new long[] { member.getIdLong(), member.getGuild().getIdLong(), role.getIdLong() });
 		return this;
 	}
 
+	@Override
+	public RoleBatchWorker addMemberRoles(Member member, Collection<Role> roles) {
+		if (!roles.isEmpty()) {
+			batchData.membershipFilter().add(member.getGuild().getIdLong(), member.getIdLong());
+			addToBatch(batchData.insertQueue, toChunk(member, roles));
+		}
+		return this;
+	}
+
+	/**
+	 * Add roles stored in a primitive buffer. The buffer holds consecutive
+	 * {@code [memberID, guildID, roleID]} triples and is queued as a single chunk.
+	 * If {@code length} is the length of {@code buffer}, the worker takes
+	 * ownership of it and it must not be modified afterwards. Otherwise the used
+	 * part is copied.
+	 * 
+	 * @param buffer - buffer of triples
+	 * @param length - number of values used in {@code buffer}. Must be a multiple
+	 *               of {@code 3}
+	 * 
+	 * @return This instance used for chaining
+	 * 
+	 * @throws IllegalArgumentException If {@code length} is not a multiple of
+	 *                                  {@code 3}
+	 */
+	public RoleBatchWorker addMemberRoles(long[] buffer, int length) {
+		if (length % 3 != 0)
+			throw new IllegalArgumentException("Length must be a multiple of 3");
+		if (length == 0)
+			return this;
+
+		long lastMember = -1, lastGuild = -1;
+		for (int i = 0; i < length; i += 3) {
+			// Triples of the same member are consecutive
+			if (buffer[i] != lastMember || buffer[i + 1] != lastGuild) {
+				lastMember = buffer[i];
+				lastGuild = buffer[i + 1];
+				batchData.membershipFilter().add(lastGuild, lastMember);
+			}
+		}
+
+		addToBatch(batchData.insertQueue, length == buffer.length ? buffer : Arrays.copyOf(buffer, length));
+		return this;
+	}
+
 	@Override
 
 	public RoleBatchWorker removeMemberRole(Member member, Role role) {
@@ -241,36 +585,95 @@ public class BatchWorker implements RoleBatchWorker {
 		return this;
 	}
 
+	@Override
+	public RoleBatchWorker removeMemberRoles(Member member, Collection<Role> roles) {
+		if (!roles.isEmpty())
+			addToBatch(batchData.removeQueue, toChunk(member, roles));
+		return this;
+	}
+
 	/**
-	 * Add a batch of data to be processed. If upon adding the data, the batch
-	 * threshold is reached, then the worker thread will be notified to process
-	 * {@code threshold} amount of items.
+	 * Add a chunk of rows to be processed. If the number of pending rows has
+	 * reached the batch threshold and the worker thread is waiting, then it will
+	 * be unparked to process {@code threshold} amount of rows. This method is
+	 * lock-free and safe to call from any number of threads.
 	 * 
-	 * @param queue - queue to add {@code data} to
-	 * @param data  - data to be inserted to {@code queue}
+	 * @param queue - queue to add {@code chunk} to
+	 * @param chunk - {@code [memberID, guildID, roleID]} triples to be inserted to
+	 *              {@code queue}
 	 */
-	private void addToBatch(Queue<long[]> queue, long[] data) {
-		synchronized (batchData) {
-			queue.add(data);
-			if (!processing.get() && batchData.thresholdReached()) {
-				processing.set(true);
-				batchData.notify();
-			}
+	private void addToBatch(Queue<long[]> queue, long[] chunk) {
+		queue.offer(chunk);
+		if (pending.addAndGet(chunk.length / 3) >= batchData.threshold() && waiting.compareAndSet(true, false))
+			LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Convert roles of a member into a chunk of triples.
+	 * 
+	 * @param member - member the roles belong to
+	 * @param roles  - roles to convert
+	 * 
+	 * @return An array of {@code [memberID, guildID, roleID]} triples
+	 */
+	private static long[] toChunk(Member member, Collection<Role> roles) {
+		long memberID = member.getIdLong();
+		long guildID = member.getGuild().getIdLong();
+
+		long[] chunk = new long[roles.size() * 3];
+		int i = 0;
+		for (Role role : roles) {
+			chunk[i++] = memberID;
+			chunk[i++] = guildID;
+			chunk[i++] = role.getIdLong();
 		}
+		return chunk;
+	}
+
+	/**
+	 * Check if the worker thread is running.
+	 * 
+	 * @return Returns {@code true} if the worker has been started and not yet
+	 *         closed
+	 */
+	public boolean isRunning() {
+		return running.get();
+	}
+
+	/**
+	 * Get the number of rows waiting to be written to the database.
+	 * 
+	 * @return The number of pending rows across both queues
+	 */
+	public int getPendingCount() {
+		return pending.get();
 	}
 
 	/**
-	 * Record used to hold all data needed for {@link BatchWorker}.
+	 * Record used to hold all data needed for {@link BatchWorker}. Both queues hold
+	 * chunks of {@code [memberID, guildID, roleID]} triples and must be safe for
+	 * concurrent producers, such as a
+	 * {@link java.util.concurrent.ConcurrentLinkedQueue ConcurrentLinkedQueue}.
 	 * 
 	 * @author Ashley
 	 *
 	 * @param <T> - Any class that extends a {@link Queue}
 	 */
-	public record BatchData<T extends Queue<long[]>>(Connection source, T insertQueue, T removeQueue,
-			Supplier<String> insertStatement, Supplier<String> removeStatement, int threshold) {
+	public record BatchData<T extends Queue<long[]>>(ConnectionProvider source, T insertQueue, T removeQueue,
+			RoleWriter writer, WorkerSettings settings, BatchSizeController controller,
+			MembershipFilter membershipFilter) {
+
+		/**
+		 * Get the number of items required to trigger a batch.
+		 * 
+		 * @return The current batch threshold of the {@link BatchSizeController}
+		 */
+		public int threshold() {
+			return controller.getBatchSize();
+		}
 
 		/**
-		 * Get the total number of items held by this instance.
+		 * Get the total number of chunks held by this instance.
 		 * 
 		 * @return The sum of both queues
 		 */
@@ -295,12 +698,90 @@ public class BatchWorker implements RoleBatchWorker {
 		 *         the threshold
 		 */
 		public boolean thresholdReached() {
-			return size() >= threshold;
+			return size() >= threshold();
+		}
+	}
+
+	/**
+	 * Outcome of writing a batch, used to decide what is reported to the
+	 * {@link BatchSizeController}.
+	 * 
+	 * @author Ashley
+	 *
+	 */
+	private enum Outcome {
+		/**
+		 * Every row was written on the first attempt
+		 */
+		WRITTEN,
+		/**
+		 * Rows were dropped because of their content. Nothing went wrong with the
+		 * database itself
+		 */
+		REJECTED,
+		/**
+		 * A transient error (deadlock, lock wait timeout or lost connection) occurred
+		 * on any attempt
+		 */
+		CONTENDED;
+
+		/**
+		 * Combine two outcomes, keeping the most severe.
+		 * 
+		 * @param other - outcome to combine with
+		 * 
+		 * @return The more severe of both outcomes
+		 */
+		Outcome and(Outcome other) {
+			return compareTo(other) >= 0 ? this : other;
 		}
 	}
 
 	@FunctionalInterface
-	private interface StatementConsumer {
-		public void accept(PreparedStatement statement, int batchSize, int queueSize) throws SQLException;
+	private interface BatchOperation {
+		public void accept(RoleBatch items) throws SQLException;
+	}
+
+	/**
+	 * Read position of the worker in a queue. The chunk at the head may be split
+	 * across several batches.
+	 * 
+	 * @author Ashley
+	 *
+	 */
+	private static class Cursor {
+		private final Queue<long[]> queue;
+
+		/**
+		 * Partially written chunk, or {@code null}
+		 */
+		private long[] head;
+
+		/**
+		 * Index of the next value in {@link #head}
+		 */
+		private int offset;
+
+		Cursor(Queue<long[]> queue) {
+			this.queue = Objects.requireNonNull(queue);
+		}
+	}
+
+	/**
+	 * Functional interface used to open new connections for the worker.
+	 * 
+	 * @author Ashley
+	 *
+	 */
+	@FunctionalInterface
+	public interface ConnectionProvider {
+		/**
+		 * Open a new connection to the database.
+		 * 
+		 * @return A new {@link Connection}
+		 * 
+		 * @throws SQLException Thrown if the connection could not be opened
+		 */
+		public Connection openConnection() throws SQLException;
 	}
 }
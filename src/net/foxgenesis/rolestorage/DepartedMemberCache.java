@@ -0,0 +1,378 @@
+package net.foxgenesis.rolestorage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the role IDs held by recently departed guild members. Used
+ * to restore roles of members that rejoin shortly after leaving without
+ * querying the database.
+ * <p>
+ * Entries expire after a fixed amount of time. Since every entry has the same
+ * lifetime, insertion order is also expiration order, so entries are kept in a
+ * ring in insertion order and their role IDs are appended to a second ring of
+ * role IDs. The oldest entries are evicted once either ring is full, which
+ * bounds the memory used by the total number of stored role IDs rather than by
+ * the number of members. Both rings and the open-addressed index of
+ * {@code (guild, member)} pairs are primitive arrays allocated up front.
+ * </p>
+ * <p>
+ * Entries that are taken or replaced leave a hole in both rings until they
+ * reach the head and are swept along with expired entries.
+ * </p>
+ * 
+ * @author Ashley
+ *
+ */
+public class DepartedMemberCache {
+
+	/**
+	 * Maximum number of entries
+	 */
+	private final int maxEntries;
+
+	/**
+	 * Maximum number of role IDs held by all entries
+	 */
+	private final int maxRoles;
+
+	/**
+	 * Lifetime of an entry in nanoseconds
+	 */
+	private final long expireAfter;
+
+	/**
+	 * Guild ID of each entry in the entry ring
+	 */
+	private final long[] guilds;
+
+	/**
+	 * Member ID of each entry in the entry ring
+	 */
+	private final long[] members;
+
+	/**
+	 * Expiration time of each entry in the entry ring
+	 */
+	private final long[] expires;
+
+	/**
+	 * Position of the first role ID of each entry in the role ring
+	 */
+	private final long[] roleStarts;
+
+	/**
+	 * Number of role IDs of each entry in the entry ring
+	 */
+	private final int[] roleCounts;
+
+	/**
+	 * Whether an entry in the entry ring has been taken or replaced
+	 */
+	private final boolean[] removed;
+
+	/**
+	 * Role IDs of all entries in insertion order
+	 */
+	private final long[] roles;
+
+	/**
+	 * Open-addressed index of the entries that have not been removed. Holds the
+	 * position in the entry ring plus one, or zero for an empty slot
+	 */
+	private final int[] index;
+
+	/**
+	 * Position of the oldest entry in the entry ring
+	 */
+	private int head;
+
+	/**
+	 * Number of entries in the entry ring, including removed entries
+	 */
+	private int count;
+
+	/**
+	 * Number of entries that have not been removed
+	 */
+	private int live;
+
+	/**
+	 * Position of the first role ID of the oldest entry. Only ever increases
+	 */
+	private long roleHead;
+
+	/**
+	 * Position after the last role ID of the newest entry. Only ever increases
+	 */
+	private long roleTail;
+
+	/**
+	 * Number of lookups answered from the cache
+	 */
+	private final LongAdder hits = new LongAdder();
+
+	/**
+	 * Number of lookups that were not present in the cache
+	 */
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Create a new cache.
+	 * 
+	 * @param maxEntries  - maximum number of departed members to hold
+	 * @param maxRoles    - maximum number of role IDs held by all departed
+	 *                    members together
+	 * @param expireAfter - how long an entry stays valid
+	 * @param unit        - time unit of {@code expireAfter}
+	 * 
+	 * @throws IllegalArgumentException If {@code maxEntries < 0},
+	 *                                  {@code maxRoles < 0} or
+	 *                                  {@code expireAfter < 0}
+	 */
+	public DepartedMemberCache(int maxEntries, int maxRoles, long expireAfter, TimeUnit unit) {
+		if (maxEntries < 0)
+			throw new IllegalArgumentException("Max entries must not be negative");
+		if (maxRoles < 0)
+			throw new IllegalArgumentException("Max roles must not be negative");
+		if (expireAfter < 0)
+			throw new IllegalArgumentException("Expiration time must not be negative");
+
+		this.maxEntries = maxEntries;
+		this.maxRoles = maxRoles;
+		this.expireAfter = unit.toNanos(expireAfter);
+
+		guilds = new long[maxEntries];
+		members = new long[maxEntries];
+		expires = new long[maxEntries];
+		roleStarts = new long[maxEntries];
+		roleCounts = new int[maxEntries];
+		removed = new boolean[maxEntries];
+		roles = new long[maxRoles];
+
+		// At most half full so that probes stay short
+		index = new int[maxEntries == 0 ? 1 : Integer.highestOneBit(Math.max(1, maxEntries - 1)) << 2];
+	}
+
+	/**
+	 * Store the role IDs of a member that has left a guild. Any existing entry for
+	 * the member is replaced. Members with more roles than the cache can hold are
+	 * not stored.
+	 * 
+	 * @param guildID  - ID of the guild the member left
+	 * @param memberID - ID of the member
+	 * @param roleIDs  - IDs of the roles the member had
+	 */
+	public synchronized void put(long guildID, long memberID, long[] roleIDs) {
+		if (maxEntries == 0)
+			return;
+
+		long now = System.nanoTime();
+		expire(now);
+
+		int found = find(guildID, memberID);
+		if (found >= 0)
+			remove(found);
+
+		if (roleIDs.length > maxRoles)
+			return;
+
+		while (count == maxEntries || roleTail - roleHead + roleIDs.length > maxRoles)
+			evict();
+
+		int slot = (head + count++) % maxEntries;
+		guilds[slot] = guildID;
+		members[slot] = memberID;
+		expires[slot] = now + expireAfter;
+		roleStarts[slot] = roleTail;
+		roleCounts[slot] = roleIDs.length;
+		removed[slot] = false;
+
+		for (long roleID : roleIDs)
+			roles[(int) (roleTail++ % maxRoles)] = roleID;
+
+		int i = hash(guildID, memberID) & (index.length - 1);
+		while (index[i] != 0)
+			i = (i + 1) & (index.length - 1);
+		index[i] = slot + 1;
+		live++;
+	}
+
+	/**
+	 * Remove and return the cached role IDs of a member.
+	 * 
+	 * @param guildID  - ID of the guild the member joined
+	 * @param memberID - ID of the member
+	 * 
+	 * @return The role IDs the member had when they left, or {@code null} if the
+	 *         member is not cached or the entry has expired
+	 */
+	public long[] take(long guildID, long memberID) {
+		long[] roleIDs = null;
+
+		synchronized (this) {
+			if (maxEntries > 0) {
+				expire(System.nanoTime());
+
+				int found = find(guildID, memberID);
+				if (found >= 0) {
+					int slot = index[found] - 1;
+					roleIDs = new long[roleCounts[slot]];
+					for (int i = 0; i < roleIDs.length; i++)
+						roleIDs[i] = roles[(int) ((roleStarts[slot] + i) % maxRoles)];
+					remove(found);
+				}
+			}
+		}
+
+		if (roleIDs == null) {
+			misses.increment();
+			return null;
+		}
+
+		hits.increment();
+		return roleIDs;
+	}
+
+	/**
+	 * Remove all entries for a guild.
+	 * 
+	 * @param guildID - ID of the guild to remove
+	 */
+	public synchronized void removeGuild(long guildID) {
+		for (int i = 0; i < count; i++) {
+			int slot = (head + i) % maxEntries;
+			if (!removed[slot] && guilds[slot] == guildID)
+				remove(find(guildID, members[slot]));
+		}
+	}
+
+	/**
+	 * Remove all expired entries along with removed entries at the head of the
+	 * entry ring. Must be called while holding the cache lock.
+	 * 
+	 * @param now - current value of {@link System#nanoTime()}
+	 */
+	private void expire(long now) {
+		while (count > 0 && (removed[head] || expires[head] - now <= 0))
+			evict();
+	}
+
+	/**
+	 * Evict the oldest entry and free its role IDs. Must be called while holding
+	 * the cache lock.
+	 */
+	private void evict() {
+		if (!removed[head])
+			remove(find(guilds[head], members[head]));
+
+		roleHead = roleStarts[head] + roleCounts[head];
+		head = (head + 1) % maxEntries;
+		if (--count == 0)
+			roleHead = roleTail;
+	}
+
+	/**
+	 * Find the index slot of an entry. Must be called while holding the cache
+	 * lock.
+	 * 
+	 * @param guildID  - ID of the guild
+	 * @param memberID - ID of the member
+	 * 
+	 * @return The position in {@link #index}, or {@code -1} if the member is not
+	 *         cached
+	 */
+	private int find(long guildID, long memberID) {
+		int mask = index.length - 1;
+		for (int i = hash(guildID, memberID) & mask; index[i] != 0; i = (i + 1) & mask) {
+			int slot = index[i] - 1;
+			if (guilds[slot] == guildID && members[slot] == memberID)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Mark an entry as removed and delete it from the index, shifting back any
+	 * entries that probed past it. Its role IDs are freed once it reaches the head
+	 * of the entry ring. Must be called while holding the cache lock.
+	 * 
+	 * @param position - position of the entry in {@link #index}
+	 */
+	private void remove(int position) {
+		int mask = index.length - 1;
+		removed[index[position] - 1] = true;
+		live--;
+
+		int gap = position;
+		for (int i = (gap + 1) & mask; index[i] != 0; i = (i + 1) & mask) {
+			int slot = index[i] - 1;
+			int home = hash(guilds[slot], members[slot]) & mask;
+
+			// Only move entries whose probe sequence passes through the gap
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				index[gap] = index[i];
+				gap = i;
+			}
+		}
+		index[gap] = 0;
+	}
+
+	/**
+	 * Hash a {@code (guild, member)} pair.
+	 */
+	private static int hash(long guildID, long memberID) {
+		long h = guildID * 0x9E3779B97F4A7C15L ^ memberID;
+		h = (h ^ (h >>> 32)) * 0xBF58476D1CE4E5B9L;
+		return (int) (h ^ (h >>> 29));
+	}
+
+	/**
+	 * Get the number of entries currently held.
+	 * 
+	 * @return The number of cached departed members
+	 */
+	public synchronized int size() {
+		return live;
+	}
+
+	/**
+	 * Get the number of role IDs held by the cache, including those of removed
+	 * entries that have not been swept yet.
+	 * 
+	 * @return The number of role IDs using space in the cache
+	 */
+	public synchronized long roleCount() {
+		return roleTail - roleHead;
+	}
+
+	/**
+	 * Get the number of lookups answered from the cache.
+	 * 
+	 * @return The number of cache hits
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * Get the number of lookups that were not answered from the cache.
+	 * 
+	 * @return The number of cache misses
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Get the ratio of lookups that were answered from the cache.
+	 * 
+	 * @return The hit rate between {@code 0} and {@code 1}, or {@code 0} if no
+	 *         lookups have been performed
+	 */
+	public double getHitRate() {
+		long hit = hits.sum();
+		long total = hit + misses.sum();
+		return total == 0 ? 0 : (double) hit / total;
+	}
+}
@@ -1,11 +1,20 @@
 package net.foxgenesis.rolestorage;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 import net.foxgenesis.property.PropertyMapping;
 import net.foxgenesis.property.PropertyType;
+import net.foxgenesis.rolestorage.AssignableRoleCache.GuildRoles;
+import net.foxgenesis.rolestorage.LeaseManager.Lease;
 import net.foxgenesis.watame.plugin.Plugin;
 import net.foxgenesis.watame.property.PluginProperty;
 import net.foxgenesis.watame.property.PluginPropertyProvider;
@@ -14,15 +23,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.dv8tion.jda.api.JDA;
-import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Role;
 import net.dv8tion.jda.api.events.guild.GuildJoinEvent;
 import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRemoveEvent;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleAddEvent;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleRemoveEvent;
+import net.dv8tion.jda.api.events.role.GenericRoleEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import net.dv8tion.jda.api.utils.cache.SnowflakeCacheView;
 
@@ -41,21 +51,75 @@ public class GuildListener extends ListenerAdapter implements AutoCloseable {
 	private static final Logger logger = LoggerFactory.getLogger("Role Storage Listener");
 
 	/**
-	 * Property to enable/disable role storage
+	 * Check whether role storage is enabled in a guild
 	 */
-	private PluginProperty enabled;
+	private final Predicate<Guild> enabled;
 
 	/**
 	 * Database to use for role storage
 	 */
 	private RoleStorageDatabase database;
 
+	/**
+	 * Cache of roles held by recently departed members
+	 */
+	private final DepartedMemberCache departedCache;
+
+	/**
+	 * Leases coordinating scans and purges with other nodes
+	 */
+	private final LeaseManager leases;
+
+	/**
+	 * Pool used to scan the members of a guild in parallel
+	 */
+	private final ForkJoinPool scanPool;
+
+	/**
+	 * Number of workers writing the results of a single guild scan
+	 */
+	private final int writeLanes;
+
+	/**
+	 * Cache of storable and assignable roles of each guild
+	 */
+	private final AssignableRoleCache assignableRoles = new AssignableRoleCache();
+
 	/**
 	 * Construct a new listener to listen to guild updates.
 	 */
-	public GuildListener(Plugin plugin, PluginPropertyProvider provider, RoleStorageDatabase database) {
+	public GuildListener(Plugin plugin, PluginPropertyProvider provider, RoleStorageDatabase database,
+			DepartedMemberCache departedCache, LeaseManager leases, int scanParallelism, int writeLanes) {
+		this(isEnabled(provider.upsertProperty(plugin, "enabled", true, PropertyType.NUMBER)), database, departedCache,
+				leases, scanParallelism, writeLanes);
+	}
+
+	/**
+	 * Construct a new listener that decides per guild whether role storage is
+	 * enabled using the provided predicate.
+	 */
+	GuildListener(Predicate<Guild> enabled, RoleStorageDatabase database, DepartedMemberCache departedCache,
+			LeaseManager leases, int scanParallelism, int writeLanes) {
+		if (writeLanes <= 0)
+			throw new IllegalArgumentException("Write lanes must be greater than zero");
+
 		this.database = Objects.requireNonNull(database);
-		enabled = provider.upsertProperty(plugin, "enabled", true, PropertyType.NUMBER);
+		this.departedCache = Objects.requireNonNull(departedCache);
+		this.leases = Objects.requireNonNull(leases);
+		this.scanPool = new ForkJoinPool(scanParallelism);
+		this.writeLanes = writeLanes;
+		this.enabled = Objects.requireNonNull(enabled);
+	}
+
+	/**
+	 * Create a predicate reading the enabled property of a guild.
+	 * 
+	 * @param property - property to read
+	 * 
+	 * @return A {@link Predicate} that is {@code true} if role storage is enabled
+	 */
+	private static Predicate<Guild> isEnabled(PluginProperty property) {
+		return guild -> property.get(guild, () -> false, PropertyMapping::getAsBoolean);
 	}
 
 	@Override
@@ -65,18 +129,45 @@ public class GuildListener extends ListenerAdapter implements AutoCloseable {
 
 	@Override
 	public void onGuildLeave(GuildLeaveEvent event) {
-		database.removeGuild(event.getGuild());
+		long guildID = event.getGuild().getIdLong();
+		departedCache.removeGuild(guildID);
+		assignableRoles.invalidate(guildID);
+
+		// Only one node needs to purge the guild
+		Optional<Lease> lease = leases.acquire(guildID, LeaseManager.PURGE);
+		if (lease.isPresent()) {
+			try {
+				database.removeGuild(event.getGuild());
+			} finally {
+				leases.complete(lease.get());
+			}
+		}
 	}
 
 	@Override
 	public void onGuildMemberJoin(GuildMemberJoinEvent event) {
 		Guild guild = event.getGuild();
-		if (enabled.get(guild, () -> false, PropertyMapping::getAsBoolean)) {
+		if (enabled.test(guild)) {
 			Member member = event.getMember();
-			Member bot = guild.getSelfMember();
+			GuildRoles guildRoles = assignableRoles.get(guild);
+
+			// Always consume the cached entry so it can not be used for a later join
+			long[] cached = departedCache.take(guild.getIdLong(), member.getIdLong());
+
+			// Bot is missing permissions or is unable to interact with any role
+			if (guildRoles.hasAssignable()) {
+				Predicate<Role> filter = role -> role != null && guildRoles.isAssignable(role.getIdLong());
+				List<Role> roles;
+
+				if (cached != null) {
+					// Member left recently. Restore from memory
+					roles = Arrays.stream(cached).filter(guildRoles::isAssignable).mapToObj(guild::getRoleById)
+							.filter(Objects::nonNull).toList();
+					logger.trace("Departed cache hit for {} in {} (hit rate = {})", member, guild,
+							"%.2f".formatted(departedCache.getHitRate()));
+				} else
+					roles = database.getAllMemberRolesInGuild(member, filter);
 
-			if (bot.hasPermission(Permission.MANAGE_ROLES)) {
-				List<Role> roles = database.getAllMemberRolesInGuild(member, role -> role != null && bot.canInteract(role) && !role.isManaged());
 				if (!roles.isEmpty()) {
 					logger.debug("Giving roles {} to {} in {}", roles, member, guild);
 					guild.modifyMemberRoles(member, roles).queue();
@@ -85,14 +176,34 @@ public class GuildListener extends ListenerAdapter implements AutoCloseable {
 		}
 	}
 
+	@Override
+	public void onGuildMemberRemove(GuildMemberRemoveEvent event) {
+		Guild guild = event.getGuild();
+
+		if (enabled.test(guild)) {
+			Member member = event.getMember();
+
+			// Member was not cached so we have nothing to remember
+			if (member == null)
+				return;
+
+			GuildRoles guildRoles = assignableRoles.get(guild);
+			long[] roles = member.getRoles().stream().mapToLong(Role::getIdLong).filter(guildRoles::isStorable)
+					.toArray();
+			departedCache.put(guild.getIdLong(), member.getIdLong(), roles);
+		}
+	}
+
 	@Override
 	public void onGuildMemberRoleAdd(GuildMemberRoleAddEvent event) {
 		Guild guild = event.getGuild();
+		invalidateIfSelf(event.getMember());
 
-		if (enabled.get(guild, () -> false, PropertyMapping::getAsBoolean)) {
+		if (enabled.test(guild)) {
 			Member member = event.getMember();
+			GuildRoles guildRoles = assignableRoles.get(guild);
 			List<Role> roles = new ArrayList<>(event.getRoles());
-			roles.removeIf(Role::isManaged);
+			roles.removeIf(role -> !guildRoles.isStorable(role.getIdLong()));
 			logger.debug("Adding roles ({}) for {} in {}", roles, member, guild);
 			database.addMemberRoles(member, roles);
 		}
@@ -101,8 +212,9 @@ public class GuildListener extends ListenerAdapter implements AutoCloseable {
 	@Override
 	public void onGuildMemberRoleRemove(GuildMemberRoleRemoveEvent event) {
 		Guild guild = event.getGuild();
+		invalidateIfSelf(event.getMember());
 
-		if (enabled.get(guild, () -> false, PropertyMapping::getAsBoolean)) {
+		if (enabled.test(guild)) {
 			Member member = event.getMember();
 			List<Role> roles = event.getRoles();
 
@@ -111,11 +223,50 @@ public class GuildListener extends ListenerAdapter implements AutoCloseable {
 		}
 	}
 
+	@Override
+	public void onGenericRole(GenericRoleEvent event) {
+		// Role was created, deleted or updated (including position and permissions)
+		assignableRoles.invalidate(event.getGuild().getIdLong());
+	}
+
+	/**
+	 * Invalidate the cached role sets of a guild if the member is the bot.
+	 * 
+	 * @param member - member whose roles changed
+	 */
+	private void invalidateIfSelf(Member member) {
+		Guild guild = member.getGuild();
+		if (member.getIdLong() == guild.getSelfMember().getIdLong())
+			assignableRoles.invalidate(guild.getIdLong());
+	}
+
 	@Override
 	public void close() throws Exception {
+		logger.debug("Departed member cache: {} hits, {} misses (hit rate = {})", departedCache.getHitCount(),
+				departedCache.getMissCount(), "%.2f".formatted(departedCache.getHitRate()));
+		scanPool.shutdown();
+		leases.close();
 		database.close();
 	}
 
+	/**
+	 * Get the cache holding the roles of recently departed members.
+	 * 
+	 * @return The {@link DepartedMemberCache} used by this listener
+	 */
+	public DepartedMemberCache getDepartedCache() {
+		return departedCache;
+	}
+
+	/**
+	 * Get the cache holding the storable and assignable roles of each guild.
+	 * 
+	 * @return The {@link AssignableRoleCache} used by this listener
+	 */
+	AssignableRoleCache getAssignableRoles() {
+		return assignableRoles;
+	}
+
 	/**
 	 * Perform a full scan of all guilds in the cache.
 	 * 
@@ -137,18 +288,150 @@ public class GuildListener extends ListenerAdapter implements AutoCloseable {
 	 * @param guild - Guild to scan
 	 */
 	private void scanGuild(Guild guild) {
-		if (enabled.get(guild, () -> false, PropertyMapping::getAsBoolean)) {
+		if (enabled.test(guild)) {
+			// Only one node needs to scan the guild
+			Optional<Lease> acquired = leases.acquire(guild.getIdLong(), LeaseManager.SCAN);
+			if (acquired.isEmpty()) {
+				logger.info("Skipping scan of {}. Another node holds the lease", guild.getName());
+				return;
+			}
+			Lease lease = acquired.get();
+
 			logger.info("Scanning {} for roles...", guild.getName());
 
-			try (BatchWorker worker = database.getBatchWorker()) {
-				long startTime = System.currentTimeMillis();
+			BatchWorker[] lanes = new BatchWorker[writeLanes];
+			try {
+				long startTime = System.nanoTime();
+
+				for (int i = 0; i < lanes.length; i++)
+					lanes[i] = database.getBatchWorker();
+
+				List<Member> members = guild.getMemberCache().asList();
+				scanMembers(guild, members, lanes, lease);
+				long scanned = System.nanoTime();
+
+				// Flush all lanes before reporting
+				for (int i = 0; i < lanes.length; i++) {
+					lanes[i].close();
+					lanes[i] = null;
+				}
+				long written = System.nanoTime();
+
+				// Report both phases separately. Extra threads only shorten the scan, the
+				// write phase is bound by the database
+				double scanTime = (scanned - startTime) / 1_000_000D;
+				double writeTime = (written - scanned) / 1_000_000D;
+				logger.info("Finished scanning {} ({} members) for roles in {} "
+						+ "(scan {} on {} threads, {} members/s; write {} on {} lanes)", guild.getName(),
+						members.size(), "%.2f ms".formatted(scanTime + writeTime), "%.2f ms".formatted(scanTime),
+						scanPool.getParallelism(), "%.0f".formatted(members.size() / Math.max(scanTime / 1000D, 1e-9)),
+						"%.2f ms".formatted(writeTime), lanes.length);
+			} catch (CancellationException e) {
+				logger.warn("Stopped scanning {}. The scan lease was lost to another node", guild.getName());
+			} finally {
+				for (BatchWorker lane : lanes)
+					if (lane != null)
+						lane.close();
+				leases.complete(lease);
+			}
+		}
+	}
+
+	/**
+	 * Scan members of a guild on the scan pool and hand their storable roles to
+	 * the write lanes.
+	 * 
+	 * @param guild   - guild the members belong to
+	 * @param members - members to scan
+	 * @param lanes   - workers writing the roles
+	 * @param lease   - scan lease of the guild
+	 * 
+	 * @throws CancellationException If the scan lease was lost
+	 */
+	void scanMembers(Guild guild, List<Member> members, BatchWorker[] lanes, Lease lease) {
+		scanPool.invoke(new ScanTask(members, 0, members.size(), assignableRoles.get(guild), lanes,
+				new AtomicInteger(), lease));
+	}
+
+	/**
+	 * Task used to scan a range of guild members. Ranges larger than
+	 * {@link #PARTITION_SIZE} are split in half. Each partition collects the
+	 * storable roles of its members into a primitive buffer and hands it as a
+	 * single chunk to the next write lane in turn. Partitions started after the
+	 * scan lease was lost throw a {@link CancellationException}.
+	 * 
+	 * @author Ashley
+	 *
+	 */
+	private static class ScanTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Maximum number of members scanned by a single task
+		 */
+		private static final int PARTITION_SIZE = 4096;
+
+		private final transient List<Member> members;
+		private final int start;
+		private final int end;
+		private final transient GuildRoles guildRoles;
+		private final transient BatchWorker[] lanes;
+
+		/**
+		 * Number of partitions handed to the lanes so far, shared by all tasks of a
+		 * scan. Partition sizes are not multiples of {@link #PARTITION_SIZE}, so
+		 * lanes are taken in turn rather than by position
+		 */
+		private final transient AtomicInteger handed;
+		private final transient Lease lease;
 
-				guild.getMemberCache().acceptStream(stream -> {
-					stream.forEach(member -> worker.addMemberRoles(member, member.getRoles().stream().filter(r -> !r.isManaged()).toList()));
-					double end = (System.currentTimeMillis() - startTime) / 1000D;
-					logger.info("Finished scanning {} for roles in {}", guild.getName(), "%.2f ms".formatted(end));
-				});
+		ScanTask(List<Member> members, int start, int end, GuildRoles guildRoles, BatchWorker[] lanes,
+				AtomicInteger handed, Lease lease) {
+			this.members = members;
+			this.start = start;
+			this.end = end;
+			this.guildRoles = guildRoles;
+			this.lanes = lanes;
+			this.handed = handed;
+			this.lease = lease;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > PARTITION_SIZE) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new ScanTask(members, start, middle, guildRoles, lanes, handed, lease),
+						new ScanTask(members, middle, end, guildRoles, lanes, handed, lease));
+				return;
 			}
+
+			// Another node may be scanning the guild now
+			if (!lease.isHeld())
+				throw new CancellationException("Scan lease lost");
+
+			long[] buffer = new long[(end - start) * 3 * 4];
+			int length = 0;
+
+			for (int i = start; i < end; i++) {
+				Member member = members.get(i);
+				long memberID = member.getIdLong();
+				long guildID = member.getGuild().getIdLong();
+
+				for (Role role : member.getRoles()) {
+					long roleID = role.getIdLong();
+					if (!guildRoles.isStorable(roleID))
+						continue;
+
+					if (length + 3 > buffer.length)
+						buffer = Arrays.copyOf(buffer, buffer.length * 2);
+
+					buffer[length++] = memberID;
+					buffer[length++] = guildID;
+					buffer[length++] = roleID;
+				}
+			}
+
+			lanes[Math.floorMod(handed.getAndIncrement(), lanes.length)].addMemberRoles(buffer, length);
 		}
 	}
 }
@@ -0,0 +1,304 @@
+package net.foxgenesis.rolestorage;
+
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class used to coordinate guild scans and purges between multiple nodes that
+ * share the same database. A node must hold the lease of a task for a guild
+ * before performing it.
+ * <p>
+ * Leases of tasks in progress are renewed every third of the lease duration.
+ * If a renewal is refused, or fails until the lease would have expired, the
+ * lease is marked as lost and the task should stop. See {@link Lease#isHeld()}.
+ * </p>
+ * <p>
+ * Leases of finished tasks are kept until they expire so that other nodes
+ * starting during a rolling restart do not repeat the work. Leases of tasks
+ * still in progress are released on {@link #releaseAll()} so another node can
+ * take over without waiting for the lease to expire.
+ * </p>
+ * 
+ * @author Ashley
+ *
+ */
+public class LeaseManager implements AutoCloseable {
+
+	/**
+	 * Task name for guild scans
+	 */
+	public static final String SCAN = "scan";
+
+	/**
+	 * Task name for guild purges
+	 */
+	public static final String PURGE = "purge";
+
+	/**
+	 * Logger
+	 */
+	private static final Logger logger = LoggerFactory.getLogger("LeaseManager");
+
+	/**
+	 * Database holding the lease table
+	 */
+	private final RoleStorageDatabase database;
+
+	/**
+	 * Unique identifier of this node
+	 */
+	private final String owner;
+
+	/**
+	 * Lease duration in seconds
+	 */
+	private final long duration;
+
+	/**
+	 * Interval between renewals in milliseconds
+	 */
+	private final long renewInterval;
+
+	/**
+	 * Whether coordination is enabled
+	 */
+	private final boolean enabled;
+
+	/**
+	 * Leases of tasks currently in progress
+	 */
+	private final Set<Lease> active = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Executor renewing active leases, or {@code null} if coordination is
+	 * disabled or leases are renewed by calling {@link #renewAll()}
+	 */
+	private final ScheduledExecutorService heartbeat;
+
+	/**
+	 * Source of {@link System#nanoTime()} used to track when leases expire
+	 */
+	private final LongSupplier clock;
+
+	/**
+	 * Create a new lease manager.
+	 * 
+	 * @param database - database holding the lease table
+	 * @param owner    - unique identifier of this node
+	 * @param duration - lease duration in seconds
+	 * @param enabled  - whether coordination is enabled. If {@code false}, every
+	 *                 lease is granted without touching the database
+	 * 
+	 * @throws IllegalArgumentException If {@code duration <= 0}
+	 */
+	public LeaseManager(RoleStorageDatabase database, String owner, long duration, boolean enabled) {
+		this(database, owner, duration, enabled, System::nanoTime, true);
+	}
+
+	/**
+	 * Create a new lease manager using the provided clock.
+	 * 
+	 * @param database  - database holding the lease table
+	 * @param owner     - unique identifier of this node
+	 * @param duration  - lease duration in seconds
+	 * @param enabled   - whether coordination is enabled. If {@code false}, every
+	 *                  lease is granted without touching the database
+	 * @param clock     - source of {@link System#nanoTime()}
+	 * @param heartbeat - whether leases are renewed on a background thread. If
+	 *                  {@code false}, leases are only renewed by calling
+	 *                  {@link #renewAll()}
+	 * 
+	 * @throws IllegalArgumentException If {@code duration <= 0}
+	 */
+	LeaseManager(RoleStorageDatabase database, String owner, long duration, boolean enabled, LongSupplier clock,
+			boolean heartbeat) {
+		if (duration <= 0)
+			throw new IllegalArgumentException("Lease duration must be greater than zero");
+
+		this.database = Objects.requireNonNull(database);
+		this.owner = Objects.requireNonNull(owner);
+		this.duration = duration;
+		this.renewInterval = Math.max(TimeUnit.SECONDS.toMillis(duration) / 3, 1);
+		this.enabled = enabled;
+		this.clock = Objects.requireNonNull(clock);
+
+		if (enabled && heartbeat) {
+			this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "Lease Heartbeat");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.heartbeat.scheduleAtFixedRate(this::renewAll, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+		} else
+			this.heartbeat = null;
+	}
+
+	/**
+	 * Try to acquire the lease of a task for a guild. If the lease table can not
+	 * be reached, the lease is granted without being renewed so that no work is
+	 * lost.
+	 * 
+	 * @param guildID - ID of the guild
+	 * @param task    - name of the task
+	 * 
+	 * @return An {@link Optional} holding the {@link Lease} if this node should
+	 *         perform the task
+	 */
+	public Optional<Lease> acquire(long guildID, String task) {
+		if (!enabled)
+			return Optional.of(new Lease(guildID, task, 0));
+
+		try {
+			long start = clock.getAsLong();
+			if (database.tryAcquireLease(guildID, task, owner, duration)) {
+				Lease lease = new Lease(guildID, task, start);
+				active.add(lease);
+				return Optional.of(lease);
+			}
+
+			logger.debug("Lease for {} of {} is held by another node", task, guildID);
+			return Optional.empty();
+		} catch (RuntimeException e) {
+			logger.warn("Unable to acquire lease for {} of {}. Proceeding without it", task, guildID);
+			return Optional.of(new Lease(guildID, task, 0));
+		}
+	}
+
+	/**
+	 * Mark a task as finished. The lease is no longer renewed and is kept until it
+	 * expires.
+	 * 
+	 * @param lease - lease of the task
+	 */
+	public void complete(Lease lease) {
+		active.remove(lease);
+	}
+
+	/**
+	 * Release the leases of all tasks still in progress on this node.
+	 */
+	public void releaseAll() {
+		for (Lease lease : active) {
+			try {
+				database.releaseLease(lease.guildID(), lease.task(), owner);
+			} catch (RuntimeException e) {
+				logger.warn("Unable to release lease for {} of {}", lease.task(), lease.guildID());
+			}
+		}
+		active.clear();
+	}
+
+	/**
+	 * Renew all leases of tasks in progress. Called by {@link #heartbeat}, if
+	 * any.
+	 */
+	void renewAll() {
+		for (Lease lease : active) {
+			long start = clock.getAsLong();
+			try {
+				if (database.renewLease(lease.guildID(), lease.task(), owner, duration)) {
+					lease.renewed = start;
+					continue;
+				}
+
+				logger.warn("Lease for {} of {} was taken by another node", lease.task(), lease.guildID());
+			} catch (RuntimeException e) {
+				// Keep trying while the lease has not expired
+				long expires = lease.renewed + TimeUnit.SECONDS.toNanos(duration);
+				if (start + TimeUnit.MILLISECONDS.toNanos(renewInterval) < expires) {
+					logger.warn("Unable to renew lease for {} of {}. Retrying", lease.task(), lease.guildID());
+					continue;
+				}
+
+				logger.warn("Unable to renew lease for {} of {} before it expired", lease.task(), lease.guildID());
+			}
+
+			lease.held = false;
+			active.remove(lease);
+		}
+	}
+
+	/**
+	 * Stop renewing leases and release the leases of all tasks still in
+	 * progress.
+	 */
+	@Override
+	public void close() {
+		if (heartbeat != null)
+			heartbeat.shutdownNow();
+		releaseAll();
+	}
+
+	/**
+	 * Get the unique identifier of this node.
+	 * 
+	 * @return The lease owner used by this node
+	 */
+	public String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Lease of a task for a guild held by this node.
+	 * 
+	 * @author Ashley
+	 *
+	 */
+	public static final class Lease {
+		private final long guildID;
+		private final String task;
+
+		/**
+		 * Clock time before the last successful acquire or renewal
+		 */
+		private volatile long renewed;
+
+		/**
+		 * Whether this node still holds the lease
+		 */
+		private volatile boolean held = true;
+
+		private Lease(long guildID, String task, long renewed) {
+			this.guildID = guildID;
+			this.task = task;
+			this.renewed = renewed;
+		}
+
+		/**
+		 * Get the ID of the guild this lease is for.
+		 * 
+		 * @return The guild ID
+		 */
+		public long guildID() {
+			return guildID;
+		}
+
+		/**
+		 * Get the name of the task this lease is for.
+		 * 
+		 * @return The task name
+		 */
+		public String task() {
+			return task;
+		}
+
+		/**
+		 * Check if this node still holds the lease. Long running tasks should stop
+		 * once this returns {@code false}, as another node may have taken over.
+		 * 
+		 * @return Returns {@code true} if the lease has not been lost
+		 */
+		public boolean isHeld() {
+			return held;
+		}
+	}
+}
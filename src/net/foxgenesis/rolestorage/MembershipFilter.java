@@ -0,0 +1,327 @@
+package net.foxgenesis.rolestorage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filter of (guild, member) pairs that have stored roles. Used to skip
+ * database lookups for members that have never had a role stored.
+ * <p>
+ * The filter never produces false negatives for pairs added through
+ * {@link #add(long, long)}, so a negative answer from
+ * {@link #mightContain(long, long)} means the member has no stored roles. Until
+ * the filter is marked as {@link #setReady() ready}, every lookup is answered
+ * with {@code true}. Adding pairs is lock-free and safe from any thread.
+ * </p>
+ * <p>
+ * A saved filter is stamped with a {@link Watermark} of the stored roles and
+ * is only loaded if no other write session started or ended since. Otherwise
+ * another writer may have stored pairs the filter has never seen.
+ * </p>
+ * 
+ * @author Ashley
+ *
+ */
+public class MembershipFilter {
+
+	/**
+	 * Header of the persisted filter file
+	 */
+	private static final int MAGIC = 0x52534246;
+
+	/**
+	 * Version of the persisted filter file
+	 */
+	private static final int VERSION = 3;
+
+	/**
+	 * Bits of the filter
+	 */
+	private final AtomicLongArray bits;
+
+	/**
+	 * Number of bits in the filter
+	 */
+	private final long bitCount;
+
+	/**
+	 * Number of hash functions
+	 */
+	private final int hashes;
+
+	/**
+	 * Whether the filter is used
+	 */
+	private final boolean enabled;
+
+	/**
+	 * Whether the filter has been fully built
+	 */
+	private volatile boolean ready;
+
+	/**
+	 * Number of lookups skipped because the pair was definitely absent
+	 */
+	private final LongAdder skipped = new LongAdder();
+
+	/**
+	 * Number of lookups where the filter matched but nothing was stored
+	 */
+	private final LongAdder falsePositives = new LongAdder();
+
+	/**
+	 * Create a new filter sized for the expected number of pairs.
+	 * 
+	 * @param expectedEntries   - expected number of (guild, member) pairs
+	 * @param falsePositiveRate - desired false positive rate when
+	 *                          {@code expectedEntries} pairs have been added
+	 * @param enabled           - whether the filter is used. A disabled filter
+	 *                          answers every lookup with {@code true}
+	 * 
+	 * @throws IllegalArgumentException If {@code expectedEntries <= 0} or
+	 *                                  {@code falsePositiveRate} is not between
+	 *                                  {@code 0} and {@code 1}
+	 */
+	public MembershipFilter(long expectedEntries, double falsePositiveRate, boolean enabled) {
+		if (expectedEntries <= 0)
+			throw new IllegalArgumentException("Expected entries must be greater than zero");
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+			throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+
+		this.enabled = enabled;
+
+		if (enabled) {
+			// Optimal bloom filter parameters
+			long m = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+			int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (m + 63) >>> 6));
+
+			this.bits = new AtomicLongArray(words);
+			this.bitCount = (long) words << 6;
+			this.hashes = Math.max(1, (int) Math.round((double) bitCount / expectedEntries * Math.log(2)));
+		} else {
+			this.bits = new AtomicLongArray(1);
+			this.bitCount = 64;
+			this.hashes = 1;
+		}
+	}
+
+	/**
+	 * Add a (guild, member) pair to the filter.
+	 * 
+	 * @param guildID  - ID of the guild
+	 * @param memberID - ID of the member
+	 */
+	public void add(long guildID, long memberID) {
+		if (!enabled)
+			return;
+
+		long h1 = mix(guildID * 31 + memberID);
+		long h2 = mix(h1 ^ memberID) | 1;
+
+		for (int i = 0; i < hashes; i++) {
+			long index = Long.remainderUnsigned(h1 + i * h2, bitCount);
+			int word = (int) (index >>> 6);
+			long mask = 1L << index;
+
+			long current;
+			while (((current = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, current, current | mask))
+				;
+		}
+	}
+
+	/**
+	 * Check if a (guild, member) pair might have stored roles.
+	 * 
+	 * @param guildID  - ID of the guild
+	 * @param memberID - ID of the member
+	 * 
+	 * @return Returns {@code false} if the pair definitely has no stored roles
+	 */
+	public boolean mightContain(long guildID, long memberID) {
+		if (!enabled || !ready)
+			return true;
+
+		long h1 = mix(guildID * 31 + memberID);
+		long h2 = mix(h1 ^ memberID) | 1;
+
+		for (int i = 0; i < hashes; i++) {
+			long index = Long.remainderUnsigned(h1 + i * h2, bitCount);
+			if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+				skipped.increment();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Record that a lookup allowed by the filter found no stored roles.
+	 */
+	public void recordFalsePositive() {
+		if (enabled && ready)
+			falsePositives.increment();
+	}
+
+	/**
+	 * Mark the filter as fully built so lookups start using it.
+	 */
+	public void setReady() {
+		ready = enabled;
+	}
+
+	/**
+	 * Check if the filter is answering lookups.
+	 * 
+	 * @return Returns {@code true} if the filter is enabled and fully built
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Check if the filter is used.
+	 * 
+	 * @return Returns {@code true} if the filter is enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Get the number of database lookups skipped by the filter.
+	 * 
+	 * @return The number of queries saved
+	 */
+	public long getSkippedCount() {
+		return skipped.sum();
+	}
+
+	/**
+	 * Get the number of lookups allowed by the filter that found no stored roles.
+	 * 
+	 * @return The number of observed false positives
+	 */
+	public long getFalsePositiveCount() {
+		return falsePositives.sum();
+	}
+
+	/**
+	 * Get the observed false positive rate. Every skipped lookup is a true
+	 * negative, so this is the ratio of false positives to all lookups for
+	 * members without stored roles.
+	 * 
+	 * @return The observed false positive rate between {@code 0} and {@code 1}
+	 */
+	public double getFalsePositiveRate() {
+		long fp = falsePositives.sum();
+		long total = fp + skipped.sum();
+		return total == 0 ? 0 : (double) fp / total;
+	}
+
+	/**
+	 * Estimate the false positive rate from the number of bits set.
+	 * 
+	 * @return The expected false positive rate between {@code 0} and {@code 1}
+	 */
+	public double getExpectedFalsePositiveRate() {
+		long set = 0;
+		for (int i = 0; i < bits.length(); i++)
+			set += Long.bitCount(bits.get(i));
+		return Math.pow((double) set / bitCount, hashes);
+	}
+
+	/**
+	 * Save the filter to a file. The file is written to a temporary file first
+	 * and then moved into place.
+	 * 
+	 * @param path      - file to write
+	 * @param watermark - watermark of the stored roles the filter was built from
+	 * 
+	 * @throws IOException Thrown if the file could not be written
+	 */
+	public void save(Path path, Watermark watermark) throws IOException {
+		Objects.requireNonNull(watermark);
+		if (!enabled)
+			return;
+
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(watermark.sequence());
+			out.writeInt(hashes);
+			out.writeInt(bits.length());
+			for (int i = 0; i < bits.length(); i++)
+				out.writeLong(bits.get(i));
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Load the filter from a file previously written with
+	 * {@link #save(Path, Watermark)}. Loaded bits are merged into this filter. The
+	 * file is ignored if it does not exist, was created with different parameters
+	 * or was stamped with a different watermark.
+	 * 
+	 * @param path      - file to read
+	 * @param watermark - watermark of the stored roles right now
+	 * 
+	 * @return Returns {@code true} if the file was loaded
+	 * 
+	 * @throws IOException Thrown if the file could not be read
+	 */
+	public boolean load(Path path, Watermark watermark) throws IOException {
+		Objects.requireNonNull(watermark);
+		if (!enabled || !Files.isRegularFile(path))
+			return false;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return false;
+			if (!watermark.equals(new Watermark(in.readLong())))
+				return false;
+			if (in.readInt() != hashes || in.readInt() != bits.length())
+				return false;
+
+			for (int i = 0; i < bits.length(); i++) {
+				long loaded = in.readLong();
+				bits.getAndAccumulate(i, loaded, (a, b) -> a | b);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 64-bit finalizer of MurmurHash3.
+	 * 
+	 * @param h - value to mix
+	 * 
+	 * @return The mixed value
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Marker of the stored roles used to detect changes made while a saved filter
+	 * was not in use.
+	 * 
+	 * @param sequence - write sequence of the database. Increased whenever a node
+	 *                 starts or stops writing roles
+	 */
+	public record Watermark(long sequence) {}
+}
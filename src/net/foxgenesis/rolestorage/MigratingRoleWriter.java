@@ -0,0 +1,154 @@
+package net.foxgenesis.rolestorage;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BooleanSupplier;
+
+import net.foxgenesis.rolestorage.RoleStorageDatabase.LongBiConsumer;
+
+/**
+ * {@link RoleWriter} used in {@link StorageMode#PACKED} while existing rows are
+ * still being copied into the packed layout. Changes are written to the row
+ * layout until the migration has completed and to the packed layout after.
+ * <p>
+ * Transactions writing to the row layout hold a shared lock until they end so
+ * that the migration can wait for them before switching layouts. The members
+ * they changed are reported once the transaction has ended so that the
+ * migration copies them again.
+ * </p>
+ *
+ * @author Ashley
+ *
+ */
+public class MigratingRoleWriter implements RoleWriter {
+
+	/**
+	 * Writer of the row layout
+	 */
+	private final RoleWriter rows;
+
+	/**
+	 * Writer of the packed layout
+	 */
+	private final RoleWriter packed;
+
+	/**
+	 * Check if the migration has completed
+	 */
+	private final BooleanSupplier migrated;
+
+	/**
+	 * Shared lock held while writing to the row layout
+	 */
+	private final Lock lock;
+
+	/**
+	 * Callback receiving the guild and member IDs changed in the row layout
+	 */
+	private final LongBiConsumer changed;
+
+	/**
+	 * Guild and member ID pairs changed by the current transaction
+	 */
+	private long[] pending = new long[64];
+
+	/**
+	 * Number of longs used in {@link #pending}
+	 */
+	private int pendingLength;
+
+	/**
+	 * Whether the current transaction holds {@link #lock}
+	 */
+	private boolean locked;
+
+	/**
+	 * Create a new writer routing changes by the state of the migration.
+	 *
+	 * @param rows     - writer of the row layout
+	 * @param packed   - writer of the packed layout
+	 * @param migrated - check if the migration has completed. Must not change
+	 *                 while {@code lock} is held
+	 * @param lock     - shared lock held while writing to the row layout
+	 * @param changed  - callback receiving each guild and member ID changed in the
+	 *                 row layout after the transaction has ended
+	 */
+	public MigratingRoleWriter(RoleWriter rows, RoleWriter packed, BooleanSupplier migrated, Lock lock,
+			LongBiConsumer changed) {
+		this.rows = Objects.requireNonNull(rows);
+		this.packed = Objects.requireNonNull(packed);
+		this.migrated = Objects.requireNonNull(migrated);
+		this.lock = Objects.requireNonNull(lock);
+		this.changed = Objects.requireNonNull(changed);
+	}
+
+	@Override
+	public void open(Connection connection) throws SQLException {
+		rows.open(connection);
+		packed.open(connection);
+	}
+
+	@Override
+	public void insert(RoleBatch items) throws SQLException {
+		route(items).insert(items);
+	}
+
+	@Override
+	public void remove(RoleBatch items) throws SQLException {
+		route(items).remove(items);
+	}
+
+	/**
+	 * Choose the writer for a batch, locking the layout and recording the changed
+	 * members if the row layout is still in use.
+	 *
+	 * @param items - changes to write
+	 *
+	 * @return The {@link RoleWriter} to write {@code items} with
+	 */
+	private RoleWriter route(RoleBatch items) {
+		if (!locked) {
+			if (migrated.getAsBoolean())
+				return packed;
+
+			lock.lock();
+			locked = true;
+		}
+
+		if (migrated.getAsBoolean())
+			return packed;
+
+		if (pending.length < pendingLength + items.size() * 2)
+			pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + items.size() * 2));
+		for (int i = 0; i < items.size(); i++) {
+			pending[pendingLength++] = items.guildID(i);
+			pending[pendingLength++] = items.memberID(i);
+		}
+		return rows;
+	}
+
+	@Override
+	public void finishTransaction() {
+		if (!locked)
+			return;
+
+		try {
+			for (int i = 0; i < pendingLength; i += 2)
+				changed.accept(pending[i], pending[i + 1]);
+		} finally {
+			pendingLength = 0;
+			locked = false;
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		finishTransaction();
+		rows.close();
+		packed.close();
+	}
+}
@@ -0,0 +1,312 @@
+package net.foxgenesis.rolestorage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.function.BooleanSupplier;
+
+/**
+ * {@link RoleWriter} for {@link StorageMode#PACKED} that keeps one row per
+ * member and guild. Changes are grouped by member and applied with a
+ * read-modify-write of the packed role set.
+ * <p>
+ * Transactions run in {@code READ COMMITTED} so that reading members without a
+ * row does not take gap locks. Existing rows are locked by the read and
+ * updated in place. Members without a row are inserted with a plain
+ * {@code INSERT}. If another writer inserted the same member first, the batch
+ * fails with a transaction rollback and is retried, at which point the row
+ * exists and is locked by the read.
+ * </p>
+ * 
+ * @author Ashley
+ *
+ */
+public class PackedRoleWriter implements RoleWriter {
+
+	/**
+	 * Number of members read per query. Shorter reads are padded with the last
+	 * member so that a single statement can be reused
+	 */
+	static final int READ_SIZE = 100;
+
+	/**
+	 * SQL used to read and lock the roles of {@link #READ_SIZE} members
+	 */
+	private final String selectSQL;
+
+	/**
+	 * SQL used to insert the roles of a new member
+	 */
+	private final String insertSQL;
+
+	/**
+	 * SQL used to replace the roles of an existing member
+	 */
+	private final String updateSQL;
+
+	/**
+	 * SQL used to delete a member
+	 */
+	private final String deleteSQL;
+
+	/**
+	 * Check if the packed layout may be written to
+	 */
+	private final BooleanSupplier writable;
+
+	/**
+	 * Prepared select statement
+	 */
+	private PreparedStatement selectStatement;
+
+	/**
+	 * Prepared insert statement
+	 */
+	private PreparedStatement insertStatement;
+
+	/**
+	 * Prepared update statement
+	 */
+	private PreparedStatement updateStatement;
+
+	/**
+	 * Prepared delete statement
+	 */
+	private PreparedStatement deleteStatement;
+
+	/**
+	 * Create a new writer using the provided statements.
+	 * 
+	 * @param selectSQL - SQL used to read and lock the roles of members. Must
+	 *                  contain a single {@code %s} that is replaced by
+	 *                  {@link #READ_SIZE} {@code (?, ?)} guild and member pairs
+	 * @param insertSQL - SQL used to insert the roles of a new member
+	 * @param updateSQL - SQL used to replace the roles of an existing member
+	 * @param deleteSQL - SQL used to delete a member
+	 * @param writable  - check if the packed layout may be written to. Checked
+	 *                  each time the writer is opened
+	 */
+	public PackedRoleWriter(String selectSQL, String insertSQL, String updateSQL, String deleteSQL,
+			BooleanSupplier writable) {
+		this.selectSQL = selectSQL.formatted(String.join(", ", Collections.nCopies(READ_SIZE, "(?, ?)")));
+		this.insertSQL = insertSQL;
+		this.updateSQL = updateSQL;
+		this.deleteSQL = deleteSQL;
+		this.writable = Objects.requireNonNull(writable);
+	}
+
+	@Override
+	public void open(Connection connection) throws SQLException {
+		close();
+		if (!writable.getAsBoolean())
+			throw new SQLNonTransientException("Packed role layout is not ready to be written to", "55000");
+
+		connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+		selectStatement = connection.prepareStatement(selectSQL);
+		insertStatement = connection.prepareStatement(insertSQL);
+		updateStatement = connection.prepareStatement(updateSQL);
+		deleteStatement = connection.prepareStatement(deleteSQL);
+	}
+
+	@Override
+	public void insert(RoleBatch items) throws SQLException {
+		apply(items, true);
+	}
+
+	@Override
+	public void remove(RoleBatch items) throws SQLException {
+		apply(items, false);
+	}
+
+	/**
+	 * Apply a batch of changes grouped by member.
+	 * 
+	 * @param items  - changes to apply
+	 * @param insert - {@code true} to add the roles, {@code false} to remove them
+	 * 
+	 * @throws SQLException Thrown if the changes could not be written
+	 */
+	private void apply(RoleBatch items, boolean insert) throws SQLException {
+		RoleBatch sorted = items.sorted();
+
+		// Index of the first row of each member. Members are sorted by guild and member
+		int[] starts = new int[sorted.size() + 1];
+		int members = 0;
+		for (int i = 0; i < sorted.size(); i++)
+			if (i == 0 || sorted.memberID(i) != sorted.memberID(i - 1) || sorted.guildID(i) != sorted.guildID(i - 1))
+				starts[members++] = i;
+		starts[members] = sorted.size();
+
+		try {
+			byte[][] stored = read(sorted, starts, members);
+
+			for (int m = 0; m < members; m++) {
+				long memberID = sorted.memberID(starts[m]);
+				long guildID = sorted.guildID(starts[m]);
+				long[] current = decode(stored[m], memberID, guildID);
+				long[] changed = roles(sorted, starts[m], starts[m + 1]);
+				long[] updated = insert ? RoleCodec.union(current, changed) : RoleCodec.difference(current, changed);
+
+				if (Arrays.equals(current, updated))
+					continue;
+
+				if (updated.length == 0) {
+					deleteStatement.setLong(1, memberID);
+					deleteStatement.setLong(2, guildID);
+					deleteStatement.addBatch();
+				} else if (stored[m] == null) {
+					insertStatement.setLong(1, memberID);
+					insertStatement.setLong(2, guildID);
+					insertStatement.setBytes(3, RoleCodec.encode(updated));
+					insertStatement.addBatch();
+				} else {
+					updateStatement.setBytes(1, RoleCodec.encode(updated));
+					updateStatement.setLong(2, memberID);
+					updateStatement.setLong(3, guildID);
+					updateStatement.addBatch();
+				}
+			}
+
+			updateStatement.executeBatch();
+			deleteStatement.executeBatch();
+
+			try {
+				insertStatement.executeBatch();
+			} catch (SQLException e) {
+				if (!isDuplicateKey(e))
+					throw e;
+
+				// Another writer inserted one of the members after our read
+				throw new SQLTransactionRollbackException("Member was inserted concurrently", "40001", e);
+			}
+		} catch (SQLException e) {
+			try {
+				insertStatement.clearBatch();
+				updateStatement.clearBatch();
+				deleteStatement.clearBatch();
+			} catch (SQLException e2) {
+				e.addSuppressed(e2);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Read and lock the stored roles of each member.
+	 * 
+	 * @param sorted  - sorted changes
+	 * @param starts  - index of the first row of each member in {@code sorted}
+	 * @param members - number of members
+	 * 
+	 * @return The encoded roles of each member, or {@code null} if the member has
+	 *         no row
+	 * 
+	 * @throws SQLException Thrown if the roles could not be read
+	 */
+	private byte[][] read(RoleBatch sorted, int[] starts, int members) throws SQLException {
+		byte[][] stored = new byte[members][];
+
+		for (int from = 0; from < members; from += READ_SIZE) {
+			for (int i = 0; i < READ_SIZE; i++) {
+				int row = starts[Math.min(from + i, members - 1)];
+				selectStatement.setLong(i * 2 + 1, sorted.guildID(row));
+				selectStatement.setLong(i * 2 + 2, sorted.memberID(row));
+			}
+
+			try (ResultSet result = selectStatement.executeQuery()) {
+				while (result.next()) {
+					int m = find(sorted, starts, members, result.getLong(1), result.getLong(2));
+					if (m >= 0)
+						stored[m] = result.getBytes(3);
+				}
+			}
+		}
+
+		return stored;
+	}
+
+	/**
+	 * Find a member using a binary search.
+	 * 
+	 * @return The index of the member, or {@code -1} if it is not in the batch
+	 */
+	private static int find(RoleBatch sorted, int[] starts, int members, long guildID, long memberID) {
+		int low = 0;
+		int high = members - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int row = starts[mid];
+			int c = Long.compare(sorted.guildID(row), guildID);
+			if (c == 0)
+				c = Long.compare(sorted.memberID(row), memberID);
+
+			if (c < 0)
+				low = mid + 1;
+			else if (c > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Collect the distinct roles of the rows {@code [from, to)}.
+	 */
+	private static long[] roles(RoleBatch sorted, int from, int to) {
+		long[] roles = new long[to - from];
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			long role = sorted.roleID(i);
+			if (count == 0 || roles[count - 1] != role)
+				roles[count++] = role;
+		}
+		return Arrays.copyOf(roles, count);
+	}
+
+	private static long[] decode(byte[] data, long memberID, long guildID) throws SQLException {
+		try {
+			return RoleCodec.decode(data);
+		} catch (IllegalArgumentException e) {
+			throw new SQLException("Corrupt role data for " + memberID + " in " + guildID, e);
+		}
+	}
+
+	/**
+	 * Check if an exception, any of its causes or any chained exception is a
+	 * duplicate key error.
+	 */
+	private static boolean isDuplicateKey(SQLException e) {
+		for (SQLException next = e; next != null; next = next.getNextException()) {
+			for (Throwable t = next; t != null; t = t.getCause()) {
+				// MySQL duplicate entry or the standard unique violation state
+				if (t instanceof SQLException sql
+						&& (sql.getErrorCode() == 1062 || "23505".equals(sql.getSQLState())))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void close() {
+		for (PreparedStatement statement : new PreparedStatement[] { selectStatement, insertStatement,
+				updateStatement, deleteStatement }) {
+			try {
+				if (statement != null)
+					statement.close();
+			} catch (SQLException e) {}
+		}
+
+		selectStatement = null;
+		insertStatement = null;
+		updateStatement = null;
+		deleteStatement = null;
+	}
+}
@@ -0,0 +1,193 @@
+package net.foxgenesis.rolestorage;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * View over a primitive buffer of consecutive {@code [memberID, guildID, roleID]}
+ * triples. Batches are handed to a {@link RoleWriter} without creating an
+ * object per row. A batch does not own its buffer and is only valid for the
+ * duration of the call it was passed to.
+ *
+ * @author Ashley
+ *
+ */
+public final class RoleBatch {
+
+	/**
+	 * Buffer holding the triples
+	 */
+	private final long[] data;
+
+	/**
+	 * Index of the first row in {@link #data}
+	 */
+	private final int offset;
+
+	/**
+	 * Number of rows in this batch
+	 */
+	private final int size;
+
+	/**
+	 * Create a new batch over the rows {@code [offset, offset + size)} of a
+	 * buffer.
+	 *
+	 * @param data   - buffer of triples
+	 * @param offset - index of the first row
+	 * @param size   - number of rows
+	 *
+	 * @throws IndexOutOfBoundsException If the rows are not inside of {@code data}
+	 */
+	RoleBatch(long[] data, int offset, int size) {
+		this.data = Objects.requireNonNull(data);
+		Objects.checkFromIndexSize(offset * 3, size * 3, data.length);
+		this.offset = offset;
+		this.size = size;
+	}
+
+	/**
+	 * Create a new batch containing the first {@code size} rows of a buffer.
+	 *
+	 * @param data - buffer of triples
+	 * @param size - number of rows
+	 *
+	 * @return A new {@link RoleBatch} backed by {@code data}
+	 */
+	public static RoleBatch of(long[] data, int size) {
+		return new RoleBatch(data, 0, size);
+	}
+
+	/**
+	 * Get the number of rows in this batch.
+	 *
+	 * @return The number of {@code [memberID, guildID, roleID]} triples
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the member ID of a row.
+	 *
+	 * @param row - index of the row
+	 *
+	 * @return The member ID
+	 */
+	public long memberID(int row) {
+		return data[index(row)];
+	}
+
+	/**
+	 * Get the guild ID of a row.
+	 *
+	 * @param row - index of the row
+	 *
+	 * @return The guild ID
+	 */
+	public long guildID(int row) {
+		return data[index(row) + 1];
+	}
+
+	/**
+	 * Get the role ID of a row.
+	 *
+	 * @param row - index of the row
+	 *
+	 * @return The role ID
+	 */
+	public long roleID(int row) {
+		return data[index(row) + 2];
+	}
+
+	/**
+	 * Get a view of the rows {@code [from, to)} of this batch. The returned batch
+	 * shares the buffer of this batch.
+	 *
+	 * @param from - first row (inclusive)
+	 * @param to   - last row (exclusive)
+	 *
+	 * @return A {@link RoleBatch} over the selected rows
+	 *
+	 * @throws IndexOutOfBoundsException If the range is outside of this batch
+	 */
+	public RoleBatch subBatch(int from, int to) {
+		Objects.checkFromToIndex(from, to, size);
+		return new RoleBatch(data, offset + from, to - from);
+	}
+
+	/**
+	 * Create a copy of this batch sorted by guild, member and role.
+	 *
+	 * @return A new sorted {@link RoleBatch}
+	 */
+	public RoleBatch sorted() {
+		long[] copy = toArray();
+
+		// Heap sort so that no objects are created per row
+		for (int i = size / 2 - 1; i >= 0; i--)
+			siftDown(copy, i, size);
+		for (int end = size - 1; end > 0; end--) {
+			swap(copy, 0, end);
+			siftDown(copy, 0, end);
+		}
+
+		return new RoleBatch(copy, 0, size);
+	}
+
+	/**
+	 * Copy the triples of this batch into a new array.
+	 *
+	 * @return A new array of {@code size() * 3} values
+	 */
+	public long[] toArray() {
+		return Arrays.copyOfRange(data, offset * 3, (offset + size) * 3);
+	}
+
+	/**
+	 * Get the position of a row in {@link #data}.
+	 */
+	private int index(int row) {
+		Objects.checkIndex(row, size);
+		return (offset + row) * 3;
+	}
+
+	private static void siftDown(long[] rows, int root, int end) {
+		for (int child = root * 2 + 1; child < end; root = child, child = root * 2 + 1) {
+			if (child + 1 < end && compare(rows, child + 1, child) > 0)
+				child++;
+			if (compare(rows, root, child) >= 0)
+				return;
+			swap(rows, root, child);
+		}
+	}
+
+	private static int compare(long[] rows, int a, int b) {
+		int c = Long.compare(rows[a * 3 + 1], rows[b * 3 + 1]);
+		if (c == 0)
+			c = Long.compare(rows[a * 3], rows[b * 3]);
+		if (c == 0)
+			c = Long.compare(rows[a * 3 + 2], rows[b * 3 + 2]);
+		return c;
+	}
+
+	private static void swap(long[] rows, int a, int b) {
+		for (int i = 0; i < 3; i++) {
+			long tmp = rows[a * 3 + i];
+			rows[a * 3 + i] = rows[b * 3 + i];
+			rows[b * 3 + i] = tmp;
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("RoleBatch[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0)
+				builder.append(", ");
+			builder.append('[').append(memberID(i)).append(", ").append(guildID(i)).append(", ").append(roleID(i))
+					.append(']');
+		}
+		return builder.append(']').toString();
+	}
+}
@@ -0,0 +1,167 @@
+package net.foxgenesis.rolestorage;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Utility class used to encode sets of role IDs into the compact format used by
+ * {@link StorageMode#PACKED}.
+ * <p>
+ * Role IDs are sorted and stored as the number of roles followed by the first
+ * ID and the difference between each consecutive ID. Every value is written as
+ * an unsigned LEB128 variable-length integer. Since snowflakes of the same guild
+ * share most of their high bits, deltas are usually far smaller than the 8 bytes
+ * of a full ID.
+ * </p>
+ * 
+ * @author Ashley
+ *
+ */
+public final class RoleCodec {
+
+	/**
+	 * Empty role set
+	 */
+	private static final long[] EMPTY = new long[0];
+
+	private RoleCodec() {}
+
+	/**
+	 * Encode a set of role IDs.
+	 * 
+	 * @param roles - sorted role IDs without duplicates
+	 * 
+	 * @return The encoded role IDs
+	 */
+	public static byte[] encode(long[] roles) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1 + roles.length * 4);
+		writeVarLong(out, roles.length);
+
+		long previous = 0;
+		for (long role : roles) {
+			writeVarLong(out, role - previous);
+			previous = role;
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode a set of role IDs.
+	 * 
+	 * @param data - data created by {@link #encode(long[])}
+	 * 
+	 * @return The sorted role IDs
+	 * 
+	 * @throws IllegalArgumentException If {@code data} is malformed
+	 */
+	public static long[] decode(byte[] data) {
+		if (data == null || data.length == 0)
+			return EMPTY;
+
+		int[] position = { 0 };
+		long count = readVarLong(data, position);
+		if (count < 0 || count > data.length)
+			throw new IllegalArgumentException("Invalid role count: " + count);
+
+		long[] roles = new long[(int) count];
+		long previous = 0;
+		for (int i = 0; i < roles.length; i++)
+			roles[i] = previous += readVarLong(data, position);
+
+		return roles;
+	}
+
+	/**
+	 * Merge two sorted role sets.
+	 * 
+	 * @param a - sorted role IDs without duplicates
+	 * @param b - sorted role IDs without duplicates
+	 * 
+	 * @return The sorted union of {@code a} and {@code b}
+	 */
+	public static long[] union(long[] a, long[] b) {
+		long[] out = new long[a.length + b.length];
+		int i = 0, j = 0, k = 0;
+
+		while (i < a.length && j < b.length) {
+			int cmp = Long.compare(a[i], b[j]);
+			if (cmp < 0)
+				out[k++] = a[i++];
+			else if (cmp > 0)
+				out[k++] = b[j++];
+			else {
+				out[k++] = a[i++];
+				j++;
+			}
+		}
+		while (i < a.length)
+			out[k++] = a[i++];
+		while (j < b.length)
+			out[k++] = b[j++];
+
+		return k == out.length ? out : Arrays.copyOf(out, k);
+	}
+
+	/**
+	 * Remove a sorted role set from another.
+	 * 
+	 * @param a - sorted role IDs without duplicates
+	 * @param b - sorted role IDs to remove
+	 * 
+	 * @return The sorted role IDs of {@code a} that are not in {@code b}
+	 */
+	public static long[] difference(long[] a, long[] b) {
+		long[] out = new long[a.length];
+		int i = 0, j = 0, k = 0;
+
+		while (i < a.length) {
+			while (j < b.length && b[j] < a[i])
+				j++;
+			if (j < b.length && b[j] == a[i])
+				i++;
+			else
+				out[k++] = a[i++];
+		}
+
+		return k == out.length ? out : Arrays.copyOf(out, k);
+	}
+
+	/**
+	 * Write an unsigned variable-length long.
+	 * 
+	 * @param out   - stream to write to
+	 * @param value - value to write
+	 */
+	private static void writeVarLong(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Read an unsigned variable-length long.
+	 * 
+	 * @param data     - data to read from
+	 * @param position - single element array holding the current read position
+	 * 
+	 * @return The value read
+	 * 
+	 * @throws IllegalArgumentException If the data ends before the value does
+	 */
+	private static long readVarLong(byte[] data, int[] position) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (position[0] >= data.length)
+				throw new IllegalArgumentException("Unexpected end of role data");
+
+			byte b = data[position[0]++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed variable-length integer");
+	}
+}
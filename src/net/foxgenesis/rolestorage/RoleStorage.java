@@ -1,9 +1,16 @@
 package net.foxgenesis.rolestorage;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collection;
 import java.util.EnumSet;
+import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
+import net.foxgenesis.rolestorage.MembershipFilter.Watermark;
 import net.foxgenesis.util.resource.ConfigType;
 import net.foxgenesis.watame.WatameBot;
 import net.foxgenesis.watame.plugin.IEventStore;
@@ -14,6 +21,8 @@ import net.foxgenesis.watame.plugin.require.RequiresIntents;
 import net.foxgenesis.watame.plugin.require.RequiresMemberCachePolicy;
 
 import org.apache.commons.configuration2.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Role;
@@ -29,31 +38,134 @@ import net.dv8tion.jda.api.utils.MemberCachePolicy;
 @PluginConfiguration(defaultFile = "/META-INF/worker.ini", identifier = "worker", outputFile = "worker.ini", type = ConfigType.INI)
 public class RoleStorage extends Plugin implements RequiresIntents, RequiresMemberCachePolicy {
 
+	/**
+	 * Logger
+	 */
+	private static final Logger logger = LoggerFactory.getLogger("RoleStorage");
+
 	/**
 	 * Listener for role updates
 	 */
 	private GuildListener guildListener;
 	private RoleStorageDatabase database;
-	private final int batchSize;
+	private final WorkerSettings workerSettings;
+
+	/**
+	 * Maximum number of departed members to remember
+	 */
+	private final int departedCacheSize;
+
+	/**
+	 * Maximum number of role IDs held for all departed members
+	 */
+	private final int departedCacheRoles;
+
+	/**
+	 * Number of seconds a departed member is remembered for
+	 */
+	private final long departedCacheExpiration;
+
+	/**
+	 * Whether scans and purges are coordinated with other nodes
+	 */
+	private final boolean coordinationEnabled;
+
+	/**
+	 * Duration in seconds of scan and purge leases
+	 */
+	private final long leaseDuration;
+
+	/**
+	 * Filter of members that have stored roles
+	 */
+	private final MembershipFilter membershipFilter;
+
+	/**
+	 * File the membership filter is persisted to
+	 */
+	private final Path membershipFilterFile;
+
+	/**
+	 * Layout used to store roles
+	 */
+	private final StorageMode storageMode;
+
+	/**
+	 * Number of threads used to scan a single guild
+	 */
+	private final int scanParallelism;
+
+	/**
+	 * Number of workers writing the results of a single guild scan
+	 */
+	private final int scanWriteLanes;
 
 	public RoleStorage() {
 		super();
-		int size = 1000;
+		WorkerSettings settings = WorkerSettings.DEFAULT;
+		int cacheSize = 10000;
+		int cacheRoles = 100000;
+		long cacheExpiration = 600;
+		boolean coordinate = false;
+		long lease = 60;
+		boolean filter = true;
+		long filterEntries = 1000000;
+		double filterRate = 0.01;
+		String filterFile = "rolestorage.filter";
+		String storage = StorageMode.ROWS.name();
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		int lanes = 2;
 
 		for (String id : configurationKeySet()) {
 			Configuration config = getConfiguration(id);
 			switch (id) {
-				case "worker" -> { size = config.getInt("BatchWorker.batchSize", size); }
+				case "worker" -> {
+					settings = new WorkerSettings(config.getInt("BatchWorker.batchSize", settings.batchSize()),
+							config.getInt("BatchWorker.minBatchSize", settings.minBatchSize()),
+							config.getInt("BatchWorker.maxBatchSize", settings.maxBatchSize()),
+							config.getLong("BatchWorker.targetLatency", settings.targetLatency()),
+							config.getInt("BatchWorker.maxRetries", settings.maxRetries()),
+							config.getLong("BatchWorker.retryDelay", settings.retryDelay()));
+					cacheSize = config.getInt("DepartedCache.maxEntries", cacheSize);
+					cacheRoles = config.getInt("DepartedCache.maxRoles", cacheRoles);
+					cacheExpiration = config.getLong("DepartedCache.expireAfter", cacheExpiration);
+					coordinate = config.getBoolean("Coordination.enabled", coordinate);
+					lease = config.getLong("Coordination.leaseDuration", lease);
+					filter = config.getBoolean("MembershipFilter.enabled", filter);
+					filterEntries = config.getLong("MembershipFilter.expectedEntries", filterEntries);
+					filterRate = config.getDouble("MembershipFilter.falsePositiveRate", filterRate);
+					filterFile = config.getString("MembershipFilter.file", filterFile);
+					storage = config.getString("Storage.mode", storage);
+					parallelism = config.getInt("Scan.parallelism", parallelism);
+					lanes = config.getInt("Scan.writeLanes", lanes);
+				}
 			}
 		}
 
-		this.batchSize = size;
+		this.workerSettings = settings;
+		this.departedCacheSize = cacheSize;
+		this.departedCacheRoles = cacheRoles;
+		this.departedCacheExpiration = cacheExpiration;
+		this.coordinationEnabled = coordinate;
+		this.leaseDuration = lease;
+
+		// Other nodes write rows we never see, which would cause false negatives
+		if (filter && coordinate) {
+			logger.warn("Membership filter is not supported with coordination enabled. Disabling filter");
+			filter = false;
+		}
+
+		this.membershipFilter = new MembershipFilter(filterEntries, filterRate, filter);
+		this.membershipFilterFile = Path.of(filterFile);
+		this.storageMode = StorageMode.valueOf(storage.trim().toUpperCase());
+		this.scanParallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+		this.scanWriteLanes = lanes;
 	}
 
 	@Override
 	protected void preInit() {
 		try {
-			database = new RoleStorageDatabase(batchSize);
+			database = new RoleStorageDatabase(workerSettings, membershipFilter, storageMode);
 			registerDatabase(database);
 		} catch (Exception e) {
 			throw new SeverePluginException(e, true);
@@ -62,7 +174,11 @@ public class RoleStorage extends Plugin implements RequiresIntents, RequiresMemb
 
 	@Override
 	protected void init(IEventStore builder) {
-		guildListener = new GuildListener(this, getPropertyProvider(), database);
+		guildListener = new GuildListener(this, getPropertyProvider(), database,
+				new DepartedMemberCache(departedCacheSize, departedCacheRoles, departedCacheExpiration,
+						TimeUnit.SECONDS),
+				new LeaseManager(database, UUID.randomUUID().toString(), leaseDuration, coordinationEnabled),
+				scanParallelism, scanWriteLanes);
 		builder.registerListeners(this, guildListener);
 	}
 
@@ -71,6 +187,14 @@ public class RoleStorage extends Plugin implements RequiresIntents, RequiresMemb
 
 	@Override
 	protected void onReady() {
+		Watermark watermark = null;
+		try {
+			watermark = database.startWriteSession();
+		} catch (RuntimeException e) {
+			logger.warn("Unable to start write session. Saved membership filter will not be used", e);
+		}
+		loadMembershipFilter(watermark);
+
 		// Perform initial scan of all guilds in cache
 		guildListener.initialScan(WatameBot.getJDA().getGuildCache());
 	}
@@ -79,6 +203,87 @@ public class RoleStorage extends Plugin implements RequiresIntents, RequiresMemb
 	protected void close() throws Exception {
 		if (guildListener != null)
 			guildListener.close();
+
+		saveMembershipFilter();
+	}
+
+	/**
+	 * Load the membership filter from disk or build it from the database if no
+	 * saved filter is available or the stored roles changed since it was saved.
+	 * The saved filter is deleted after reading so that an unclean shutdown
+	 * forces a rebuild on the next start.
+	 * 
+	 * @param watermark - watermark of the stored roles before this node started
+	 *                  writing, or {@code null} if unknown
+	 */
+	private void loadMembershipFilter(Watermark watermark) {
+		if (!membershipFilter.isEnabled()) {
+			// A file left from an earlier run would be stale once the filter is used again
+			deleteMembershipFilter();
+			return;
+		}
+
+		try {
+			if (watermark != null && membershipFilter.load(membershipFilterFile, watermark)) {
+				membershipFilter.setReady();
+				logger.info("Loaded membership filter from {}", membershipFilterFile);
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Unable to load membership filter. Rebuilding...", e);
+		} finally {
+			deleteMembershipFilter();
+		}
+
+		if (membershipFilter.isReady())
+			return;
+
+		try {
+			database.buildMembershipFilter();
+		} catch (RuntimeException e) {
+			// Filter stays unready and lets every lookup through
+			logger.error("Unable to build membership filter", e);
+		}
+	}
+
+	/**
+	 * End the write session of this node and save the membership filter to disk
+	 * stamped with the resulting watermark of the stored roles. The filter is not
+	 * saved if another node wrote roles during the session.
+	 */
+	private void saveMembershipFilter() {
+		Optional<Watermark> watermark = Optional.empty();
+		try {
+			watermark = database.endWriteSession();
+		} catch (RuntimeException e) {
+			logger.warn("Unable to end write session", e);
+		}
+
+		if (!membershipFilter.isReady() || watermark.isEmpty()) {
+			deleteMembershipFilter();
+			return;
+		}
+
+		logger.info("Membership filter saved {} queries (false positive rate = {}, expected = {})",
+				membershipFilter.getSkippedCount(), "%.4f".formatted(membershipFilter.getFalsePositiveRate()),
+				"%.4f".formatted(membershipFilter.getExpectedFalsePositiveRate()));
+
+		try {
+			membershipFilter.save(membershipFilterFile, watermark.get());
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Unable to save membership filter", e);
+			deleteMembershipFilter();
+		}
+	}
+
+	/**
+	 * Delete the saved membership filter if it exists.
+	 */
+	private void deleteMembershipFilter() {
+		try {
+			Files.deleteIfExists(membershipFilterFile);
+		} catch (IOException e) {
+			logger.warn("Unable to delete membership filter {}", membershipFilterFile, e);
+		}
 	}
 
 	@Override
@@ -90,6 +295,35 @@ public class RoleStorage extends Plugin implements RequiresIntents, RequiresMemb
 	public MemberCachePolicy getPolicy() {
 		return MemberCachePolicy.ALL;
 	}
+
+	/**
+	 * Get the controller used to tune the batch size of all workers.
+	 * 
+	 * @return The {@link BatchSizeController} of the database, or {@code null} if
+	 *         the plugin has not been initialized
+	 */
+	public BatchSizeController getBatchSizeController() {
+		return database != null ? database.getBatchSizeController() : null;
+	}
+
+	/**
+	 * Get the filter used to skip lookups of members without stored roles.
+	 * 
+	 * @return The {@link MembershipFilter} of this plugin
+	 */
+	public MembershipFilter getMembershipFilter() {
+		return membershipFilter;
+	}
+
+	/**
+	 * Get the cache holding the roles of recently departed members.
+	 * 
+	 * @return The {@link DepartedMemberCache} used to restore roles on rejoin, or
+	 *         {@code null} if the plugin has not been initialized
+	 */
+	public DepartedMemberCache getDepartedCache() {
+		return guildListener != null ? guildListener.getDepartedCache() : null;
+	}
 	
 	/**
 	 * Add roles to a {@link Member} in the database.
@@ -1,16 +1,34 @@
 package net.foxgenesis.rolestorage;
 
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
 import java.util.function.Predicate;
 
 import net.foxgenesis.database.AbstractDatabase;
 import net.foxgenesis.rolestorage.BatchWorker.BatchData;
+import net.foxgenesis.rolestorage.MembershipFilter.Watermark;
 import net.foxgenesis.util.resource.ModuleResource;
 
 import net.dv8tion.jda.api.entities.Guild;
@@ -40,10 +58,121 @@ public class RoleStorageDatabase extends AbstractDatabase {
 
 	private static final String REMOVE_ROLE_KEY = "rolelist_remove_role";
 
-	private final int batchSize;
+	/**
+	 * Statement key to read and lock the packed roles of a guild member. <br>
+	 * <br>
+	 * {@value}
+	 */
+
+	private static final String PACKED_SELECT_KEY = "rolepacked_get_roles_for_update";
+
+	/**
+	 * Statement key to insert the packed roles of a new guild member. <br>
+	 * <br>
+	 * {@value}
+	 */
+
+	private static final String PACKED_INSERT_KEY = "rolepacked_insert";
+
+	/**
+	 * Statement key to replace the packed roles of a guild member. <br>
+	 * <br>
+	 * {@value}
+	 */
+
+	private static final String PACKED_UPDATE_KEY = "rolepacked_update";
+
+	/**
+	 * Statement key to remove the packed roles of a guild member. <br>
+	 * <br>
+	 * {@value}
+	 */
+
+	private static final String PACKED_REMOVE_KEY = "rolepacked_remove_member";
+
+	/**
+	 * Number of rows fetched per round-trip by streaming queries
+	 */
+	private static final int STREAM_FETCH_SIZE = 1000;
+
+	/**
+	 * MySQL error code of a duplicate index name
+	 */
+	private static final int ER_DUP_KEYNAME = 1061;
+
+	/**
+	 * Name of the migration from {@link StorageMode#ROWS} to
+	 * {@link StorageMode#PACKED} in the migration table
+	 */
+	static final String PACKED_MIGRATION = "packed";
+
+	/**
+	 * Maximum number of times members changed during the migration are copied
+	 * again before writes are held to copy the rest
+	 */
+	private static final int CATCH_UP_PASSES = 10;
+
+	private final WorkerSettings settings;
+
+	/**
+	 * Controller tuning the batch size of all workers
+	 */
+	private final BatchSizeController controller;
+
+	/**
+	 * Filter of members that have stored roles
+	 */
+	private final MembershipFilter membershipFilter;
+
+	/**
+	 * Layout used to store roles
+	 */
+	private final StorageMode storageMode;
+
+	/**
+	 * Workers created by this database
+	 */
+	private final Set<BatchWorker> workers = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Whether all rows have been copied into the packed layout
+	 */
+	private volatile boolean packedMigrated;
+
+	/**
+	 * Whether rows are being copied into the packed layout
+	 */
+	private volatile boolean migrating;
+
+	/**
+	 * Thread copying rows into the packed layout, if any
+	 */
+	private volatile Thread migration;
+
+	/**
+	 * Held shared by writes to the row layout and exclusively by the migration
+	 * while it switches to the packed layout
+	 */
+	private final ReadWriteLock layoutLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Members changed in the row layout while migrating
+	 */
+	private final Set<MemberKey> changedMembers = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Guilds removed from the row layout while migrating
+	 */
+	private final Set<Long> changedGuilds = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Write sequence at the start of the write session of this node, or
+	 * {@code -1} if no session is in progress
+	 */
+	private volatile long sessionSequence = -1;
 
 	public RoleStorageDatabase() {
-		this(1000);
+		this(WorkerSettings.DEFAULT);
 	}
 
 	/**
@@ -52,9 +181,46 @@ public class RoleStorageDatabase extends AbstractDatabase {
 	 * @param batchSize - threshold for batch updates
 	 */
 	public RoleStorageDatabase(int batchSize) {
+		this(WorkerSettings.DEFAULT.withFixedBatchSize(batchSize));
+	}
+
+	/**
+	 * Create a new instance using the specified worker settings.
+	 * 
+	 * @param settings - settings used by batch workers
+	 */
+	public RoleStorageDatabase(WorkerSettings settings) {
+		this(settings, new MembershipFilter(1, 0.5, false));
+	}
+
+	/**
+	 * Create a new instance using the specified worker settings and membership
+	 * filter.
+	 * 
+	 * @param settings         - settings used by batch workers
+	 * @param membershipFilter - filter used to skip lookups of members without
+	 *                         stored roles
+	 */
+	public RoleStorageDatabase(WorkerSettings settings, MembershipFilter membershipFilter) {
+		this(settings, membershipFilter, StorageMode.ROWS);
+	}
+
+	/**
+	 * Create a new instance using the specified worker settings, membership filter
+	 * and storage layout.
+	 * 
+	 * @param settings         - settings used by batch workers
+	 * @param membershipFilter - filter used to skip lookups of members without
+	 *                         stored roles
+	 * @param storageMode      - layout used to store roles
+	 */
+	public RoleStorageDatabase(WorkerSettings settings, MembershipFilter membershipFilter, StorageMode storageMode) {
 		super("RoleStorage Database", new ModuleResource("watamebot.rolestorage", "/META-INF/sql statements.kvp"),
 				new ModuleResource("watamebot.rolestorage", "/META-INF/createRoleTable.sql"));
-		this.batchSize = batchSize;
+		this.settings = Objects.requireNonNull(settings);
+		this.controller = new BatchSizeController(settings);
+		this.membershipFilter = Objects.requireNonNull(membershipFilter);
+		this.storageMode = Objects.requireNonNull(storageMode);
 	}
 
 	/**
@@ -68,6 +234,13 @@ public class RoleStorageDatabase extends AbstractDatabase {
 	public List<Role> getAllMemberRolesInGuild(Member member, Predicate<Role> filter) {
 		Guild guild = Objects.requireNonNull(member).getGuild();
 
+		// Member has never had a role stored
+		if (!membershipFilter.mightContain(guild.getIdLong(), member.getIdLong()))
+			return List.of();
+
+		if (usesPacked())
+			return getPackedMemberRoles(member, filter);
+
 		// Open a new connection with a prepared statement
 		try {
 			return mapStatement("rolelist_get_all_roles", statement -> {
@@ -95,6 +268,7 @@ public class RoleStorageDatabase extends AbstractDatabase {
 					}
 
 					// No row was present
+					membershipFilter.recordFalsePositive();
 					return null;
 				}
 			}).orElse(List.of());
@@ -104,24 +278,585 @@ public class RoleStorageDatabase extends AbstractDatabase {
 		}
 	}
 
+	/**
+	 * Retrieve all role entries for a guild member using a point lookup of the
+	 * packed role set.
+	 * 
+	 * @param member - guild member to retrieve roles for
+	 * @param filter - filter applied to the roles
+	 * 
+	 * @return A {@link List} of {@link Role Roles} for {@code member}
+	 */
+	private List<Role> getPackedMemberRoles(Member member, Predicate<Role> filter) {
+		Guild guild = member.getGuild();
+
+		// Open a new connection with a prepared statement
+		try {
+			return mapStatement("rolepacked_get_roles", statement -> {
+				statement.setLong(1, member.getIdLong());
+				statement.setLong(2, guild.getIdLong());
+
+				logger.trace(statement.toString());
+
+				// Execute query
+				try (ResultSet result = statement.executeQuery()) {
+
+					// Get first row if present
+					if (result.next())
+						return Arrays.stream(RoleCodec.decode(result.getBytes(1))).mapToObj(guild::getRoleById)
+								.filter(Objects.requireNonNullElse(filter, role -> true)).toList();
+
+					// No row was present
+					membershipFilter.recordFalsePositive();
+					return null;
+				}
+			}).orElse(List.of());
+		} catch (SQLException | IllegalArgumentException e) {
+			logger.error("Error while getting member roles", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Stream the IDs of all members in a guild that hold a role.
+	 * 
+	 * @param role     - role to search for
+	 * @param consumer - callback receiving each member ID
+	 * 
+	 * @return The number of entries passed to {@code consumer}
+	 */
+	public long streamMembersWithRole(Role role, LongConsumer consumer) {
+		Objects.requireNonNull(consumer);
+
+		if (usesPacked()) {
+			long roleID = role.getIdLong();
+			long[] count = { 0 };
+
+			streamPackedGuild(role.getGuild(), (memberID, roles) -> {
+				if (Arrays.binarySearch(roles, roleID) >= 0) {
+					consumer.accept(memberID);
+					count[0]++;
+				}
+			});
+			return count[0];
+		}
+
+		return streamQuery("rolelist_stream_members_with_role", statement -> {
+			statement.setLong(1, role.getGuild().getIdLong());
+			statement.setLong(2, role.getIdLong());
+		}, result -> consumer.accept(result.getLong(1)));
+	}
+
+	/**
+	 * Stream the number of stored members for each role in a guild.
+	 * 
+	 * @param guild    - guild to count roles for
+	 * @param consumer - callback receiving each role ID and its member count
+	 * 
+	 * @return The number of entries passed to {@code consumer}
+	 */
+	public long streamRoleCounts(Guild guild, LongBiConsumer consumer) {
+		Objects.requireNonNull(consumer);
+
+		if (usesPacked()) {
+			// Bounded by the number of roles in the guild
+			Map<Long, long[]> counts = new HashMap<>();
+			streamPackedGuild(guild, (memberID, roles) -> {
+				for (long roleID : roles)
+					counts.computeIfAbsent(roleID, id -> new long[1])[0]++;
+			});
+
+			counts.forEach((roleID, count) -> consumer.accept(roleID, count[0]));
+			return counts.size();
+		}
+
+		return streamQuery("rolelist_stream_role_counts", statement -> statement.setLong(1, guild.getIdLong()),
+				result -> consumer.accept(result.getLong(1), result.getLong(2)));
+	}
+
+	/**
+	 * Stream every stored role of every member in a guild.
+	 * 
+	 * @param guild    - guild to export
+	 * @param consumer - callback receiving each member ID and role ID pair
+	 * 
+	 * @return The number of entries passed to {@code consumer}
+	 */
+	public long streamGuildRoles(Guild guild, LongBiConsumer consumer) {
+		Objects.requireNonNull(consumer);
+
+		if (usesPacked()) {
+			long[] count = { 0 };
+			streamPackedGuild(guild, (memberID, roles) -> {
+				for (long roleID : roles)
+					consumer.accept(memberID, roleID);
+				count[0] += roles.length;
+			});
+			return count[0];
+		}
+
+		return streamQuery("rolelist_stream_guild", statement -> statement.setLong(1, guild.getIdLong()),
+				result -> consumer.accept(result.getLong(1), result.getLong(2)));
+	}
+
+	/**
+	 * Stream every (guild, member) pair that has stored roles.
+	 * 
+	 * @param consumer - callback receiving each guild ID and member ID pair
+	 * 
+	 * @return The number of entries passed to {@code consumer}
+	 */
+	public long streamStoredMembers(LongBiConsumer consumer) {
+		Objects.requireNonNull(consumer);
+
+		return streamQuery(usesPacked() ? "rolepacked_stream_members" : "rolelist_stream_members",
+				statement -> {},
+				result -> consumer.accept(result.getLong(1), result.getLong(2)));
+	}
+
+	/**
+	 * Stream the decoded role sets of every stored member in a guild.
+	 * 
+	 * @param guild    - guild to stream
+	 * @param consumer - callback receiving each member ID and its sorted role IDs
+	 */
+	private void streamPackedGuild(Guild guild, PackedRowConsumer consumer) {
+		streamQuery("rolepacked_stream_guild", statement -> statement.setLong(1, guild.getIdLong()), result -> {
+			try {
+				consumer.accept(result.getLong(1), RoleCodec.decode(result.getBytes(2)));
+			} catch (IllegalArgumentException e) {
+				throw new SQLException("Corrupt role data for " + result.getLong(1), e);
+			}
+		});
+	}
+
+	/**
+	 * Copy all roles stored in the row layout into the packed layout and mark the
+	 * migration as complete. Roles keep being written to the row layout while
+	 * they are copied. Members changed during the copy are copied again until few
+	 * enough are left to copy while writes wait, after which writes switch to the
+	 * packed layout. An interrupted migration starts over when run again.
+	 * 
+	 * @return The number of members read from the row layout
+	 */
+	public long migrateToPacked() {
+		logger.info("Migrating stored roles to packed layout...");
+		long start = System.currentTimeMillis();
+		migrating = true;
+
+		try (Connection conn = openConnection();
+				PreparedStatement insert = conn.prepareStatement(getRawStatement("rolepacked_migrate"))) {
+			conn.setAutoCommit(false);
+
+			// Members copied by an interrupted migration may have changed since
+			prepareStatement("rolepacked_clear", statement -> statement.executeUpdate());
+
+			PackedMigration migration = new PackedMigration(insert, conn, settings.batchSize());
+
+			// Rows are ordered by member and guild so each member arrives in one run
+			streamQuery("rolelist_stream_all", statement -> {},
+					result -> migration.accept(result.getLong(1), result.getLong(2), result.getLong(3)));
+			migration.finish();
+			long copied = migration.members;
+
+			for (int pass = 0; pass < CATCH_UP_PASSES
+					&& changedMembers.size() + changedGuilds.size() > settings.batchSize(); pass++)
+				copyChanged(conn, migration);
+
+			layoutLock.writeLock().lock();
+			try {
+				copyChanged(conn, migration);
+
+				prepareStatement("rolelist_complete_migration", statement -> {
+					statement.setString(1, PACKED_MIGRATION);
+					statement.executeUpdate();
+				});
+				packedMigrated = true;
+			} finally {
+				layoutLock.writeLock().unlock();
+			}
+
+			// Estimated from the stored IDs and role data only. The size on disk is not measured
+			logger.info("Migrated {} rows into {} members in {} ms ({} copied again). Estimated role data: {} bytes "
+					+ "as rows, {} bytes packed", migration.rows, copied, System.currentTimeMillis() - start,
+					migration.members - copied, migration.rows * 24, migration.members * 16 + migration.bytes);
+			return copied;
+		} catch (SQLException e) {
+			logger.error("Error while migrating to packed layout", e);
+			throw new RuntimeException(e);
+		} finally {
+			migrating = false;
+			changedMembers.clear();
+			changedGuilds.clear();
+		}
+	}
+
+	/**
+	 * Copy the members changed in the row layout since they were last copied
+	 * again, replacing their packed rows.
+	 * 
+	 * @param conn      - connection of the migration
+	 * @param migration - migration writing the packed rows
+	 * 
+	 * @throws SQLException Thrown if the members could not be copied
+	 */
+	private void copyChanged(Connection conn, PackedMigration migration) throws SQLException {
+		Set<Long> guilds = new HashSet<>(drain(changedGuilds));
+		List<MemberKey> members = drain(changedMembers);
+
+		try (PreparedStatement removeGuild = conn.prepareStatement(getRawStatement("rolepacked_remove_guild"));
+				PreparedStatement removeMember = conn.prepareStatement(getRawStatement(PACKED_REMOVE_KEY));
+				PreparedStatement guildRows = conn.prepareStatement(getRawStatement("rolelist_stream_guild_all"));
+				PreparedStatement memberRows = conn.prepareStatement(getRawStatement("rolelist_get_member_rows"))) {
+			for (long guildID : guilds) {
+				removeGuild.setLong(1, guildID);
+				removeGuild.executeUpdate();
+
+				guildRows.setLong(1, guildID);
+				migration.copy(guildRows);
+			}
+
+			for (MemberKey member : members) {
+				if (guilds.contains(member.guildID()))
+					continue;
+
+				removeMember.setLong(1, member.memberID());
+				removeMember.setLong(2, member.guildID());
+				removeMember.executeUpdate();
+
+				memberRows.setLong(1, member.memberID());
+				memberRows.setLong(2, member.guildID());
+				migration.copy(memberRows);
+			}
+			migration.finish();
+		}
+	}
+
+	/**
+	 * Remove all elements from a concurrent set. Elements added while draining
+	 * are either returned or left in the set.
+	 * 
+	 * @param <T> - type of the elements
+	 * @param set - set to drain
+	 * 
+	 * @return A {@link List} of the removed elements
+	 */
+	private static <T> List<T> drain(Set<T> set) {
+		List<T> drained = new ArrayList<>();
+		for (Iterator<T> it = set.iterator(); it.hasNext();) {
+			drained.add(it.next());
+			it.remove();
+		}
+		return drained;
+	}
+
+	/**
+	 * Record a member changed in the row layout so that the migration copies it
+	 * again.
+	 * 
+	 * @param guildID  - ID of the guild
+	 * @param memberID - ID of the member
+	 */
+	private void markChanged(long guildID, long memberID) {
+		if (migrating)
+			changedMembers.add(new MemberKey(guildID, memberID));
+	}
+
+	/**
+	 * Check if roles are read from and written to the packed layout.
+	 * 
+	 * @return Returns {@code true} if the packed layout is in use
+	 */
+	private boolean usesPacked() {
+		return storageMode == StorageMode.PACKED && packedMigrated;
+	}
+
+	/**
+	 * Lock the row layout for a write while the migration may still switch to the
+	 * packed layout.
+	 * 
+	 * @return The held {@link Lock}, or {@code null} if the layout in use can no
+	 *         longer change
+	 */
+	private Lock lockRowLayout() {
+		if (storageMode == StorageMode.ROWS || packedMigrated)
+			return null;
+
+		Lock lock = layoutLock.readLock();
+		lock.lock();
+		return lock;
+	}
+
+	/**
+	 * Build the membership filter by streaming all stored members and then mark
+	 * it as ready.
+	 */
+	public void buildMembershipFilter() {
+		if (!membershipFilter.isEnabled())
+			return;
+
+		long start = System.currentTimeMillis();
+		long count = streamStoredMembers(membershipFilter::add);
+		membershipFilter.setReady();
+
+		logger.info("Built membership filter from {} members in {} ms", count, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Start a write session of this node by increasing the write sequence. Call
+	 * before writing any roles.
+	 * 
+	 * @return The {@link Watermark} of the stored roles before this session. A
+	 *         filter saved with it has seen every write made through the plugin
+	 */
+	public Watermark startWriteSession() {
+		long sequence = nextWriteSequence();
+		sessionSequence = sequence;
+		return new Watermark(sequence - 1);
+	}
+
+	/**
+	 * End the write session of this node by increasing the write sequence. Call
+	 * after all roles have been written.
+	 * 
+	 * @return An {@link Optional} holding the {@link Watermark} to save the
+	 *         membership filter with, or empty if another node started or ended a
+	 *         write session since this session started
+	 */
+	public Optional<Watermark> endWriteSession() {
+		long started = sessionSequence;
+		sessionSequence = -1;
+		if (started < 0)
+			return Optional.empty();
+
+		long sequence = nextWriteSequence();
+		return sequence == started + 1 ? Optional.of(new Watermark(sequence)) : Optional.empty();
+	}
+
+	/**
+	 * Increase the write sequence. This updates a single row instead of
+	 * summarizing the stored roles, so it is cheap regardless of their size.
+	 * 
+	 * @return The new write sequence
+	 */
+	private long nextWriteSequence() {
+		try (Connection conn = openConnection();
+				PreparedStatement update = conn.prepareStatement(getRawStatement("rolelist_next_sequence"));
+				PreparedStatement select = conn.prepareStatement(getRawStatement("rolelist_get_sequence"))) {
+			conn.setAutoCommit(false);
+			update.executeUpdate();
+
+			// Row stays locked until commit so the value read is the one written
+			try (ResultSet result = select.executeQuery()) {
+				if (!result.next())
+					throw new SQLException("Write sequence is missing");
+				long sequence = result.getLong(1);
+				conn.commit();
+				return sequence;
+			}
+		} catch (SQLException e) {
+			logger.error("Error while increasing write sequence", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Get the filter used to skip lookups of members without stored roles.
+	 * 
+	 * @return The {@link MembershipFilter} of this database
+	 */
+	public MembershipFilter getMembershipFilter() {
+		return membershipFilter;
+	}
+
+	/**
+	 * Execute a query using a forward-only, read-only cursor and pass each row to
+	 * a callback as it is read. Rows are never collected, so memory usage does not
+	 * depend on the size of the result, as long as the driver streams. See
+	 * {@link #streamFetchSize(DatabaseMetaData)}.
+	 * 
+	 * @param key    - statement key
+	 * @param setter - callback used to set statement parameters
+	 * @param row    - callback invoked for each row
+	 * 
+	 * @return The number of rows streamed
+	 */
+	private long streamQuery(String key, StatementSetter setter, RowConsumer row) {
+		// Open a dedicated connection so the cursor can stay open while streaming
+		try (Connection conn = openConnection();
+				PreparedStatement statement = conn.prepareStatement(getRawStatement(key),
+						ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+			statement.setFetchSize(streamFetchSize(conn.getMetaData()));
+			setter.accept(statement);
+
+			logger.trace(statement.toString());
+
+			long count = 0;
+			try (ResultSet result = statement.executeQuery()) {
+				while (result.next()) {
+					row.accept(result);
+					count++;
+				}
+			}
+			return count;
+		} catch (SQLException e) {
+			logger.error("Error while streaming {}", key, e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Get the fetch size that makes a driver stream a forward-only, read-only
+	 * result instead of loading it into memory. MySQL Connector/J ignores a
+	 * positive fetch size unless {@code useCursorFetch} is enabled and reads the
+	 * whole result up front. {@link Integer#MIN_VALUE} makes it stream row by row
+	 * whether or not that flag is set.
+	 * 
+	 * @param metaData - meta data of the connection
+	 * 
+	 * @return The fetch size to use
+	 * 
+	 * @throws SQLException Thrown if the driver name could not be read
+	 */
+	static int streamFetchSize(DatabaseMetaData metaData) throws SQLException {
+		String driver = metaData.getDriverName();
+		return driver != null && driver.startsWith("MySQL Connector") ? Integer.MIN_VALUE : STREAM_FETCH_SIZE;
+	}
+
+	/**
+	 * Try to acquire or renew a lease on a task for a guild. The lease is granted
+	 * if no other owner holds it or if the current lease has expired.
+	 * 
+	 * @param guildID  - ID of the guild the task is for
+	 * @param task     - name of the task
+	 * @param owner    - unique identifier of the node acquiring the lease
+	 * @param duration - lease duration in seconds
+	 * 
+	 * @return Returns {@code true} if {@code owner} now holds the lease
+	 */
+	public boolean tryAcquireLease(long guildID, String task, String owner, long duration) {
+		try {
+			// Create the lease if nobody holds it yet
+			boolean inserted = mapStatement("rolelist_insert_lease", statement -> {
+				statement.setLong(1, guildID);
+				statement.setString(2, task);
+				statement.setString(3, owner);
+				statement.setLong(4, duration);
+
+				logger.trace(statement.toString());
+
+				return statement.executeUpdate() > 0;
+			}).orElse(false);
+
+			// Otherwise take it over if it is ours or has expired
+			return inserted || updateLease("rolelist_take_lease", guildID, task, owner, duration);
+		} catch (SQLException e) {
+			logger.error("Error while acquiring lease", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Extend a lease held by an owner. Unlike
+	 * {@link #tryAcquireLease(long, String, String, long)} this never takes over
+	 * an expired lease of another owner.
+	 * 
+	 * @param guildID  - ID of the guild the task is for
+	 * @param task     - name of the task
+	 * @param owner    - unique identifier of the node holding the lease
+	 * @param duration - lease duration in seconds from now
+	 * 
+	 * @return Returns {@code true} if {@code owner} still holds the lease
+	 */
+	public boolean renewLease(long guildID, String task, String owner, long duration) {
+		try {
+			return updateLease("rolelist_renew_lease", guildID, task, owner, duration);
+		} catch (SQLException e) {
+			logger.error("Error while renewing lease", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Execute a lease update taking the owner and duration followed by the guild,
+	 * task and owner to match.
+	 * 
+	 * @param key      - statement key
+	 * @param guildID  - ID of the guild the task is for
+	 * @param task     - name of the task
+	 * @param owner    - unique identifier of the node holding the lease
+	 * @param duration - lease duration in seconds from now
+	 * 
+	 * @return Returns {@code true} if a lease was updated
+	 * 
+	 * @throws SQLException Thrown if the statement could not be executed
+	 */
+	private boolean updateLease(String key, long guildID, String task, String owner, long duration)
+			throws SQLException {
+		return mapStatement(key, statement -> {
+			statement.setString(1, owner);
+			statement.setLong(2, duration);
+			statement.setLong(3, guildID);
+			statement.setString(4, task);
+			statement.setString(5, owner);
+
+			logger.trace(statement.toString());
+
+			return statement.executeUpdate() > 0;
+		}).orElse(false);
+	}
+
+	/**
+	 * Release a lease held by an owner.
+	 * 
+	 * @param guildID - ID of the guild the task is for
+	 * @param task    - name of the task
+	 * @param owner   - unique identifier of the node holding the lease
+	 */
+	public void releaseLease(long guildID, String task, String owner) {
+		try {
+			prepareStatement("rolelist_release_lease", statement -> {
+				statement.setLong(1, guildID);
+				statement.setString(2, task);
+				statement.setString(3, owner);
+
+				logger.trace(statement.toString());
+
+				statement.executeUpdate();
+			});
+		} catch (SQLException e) {
+			logger.error("Error while releasing lease", e);
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * Remove all database entries for a guild.
 	 * 
 	 * @param guild - guild to remove
 	 */
 	public void removeGuild(Guild guild) {
+		Lock lock = lockRowLayout();
+
 		// Open a new connection with a prepared statement
 		try {
-			prepareStatement("rolelist_remove_guild", statement -> {
+			boolean packed = usesPacked();
+			prepareStatement(packed ? "rolepacked_remove_guild" : "rolelist_remove_guild", statement -> {
 				statement.setLong(1, guild.getIdLong());
 
 				logger.trace(statement.toString());
 
 				statement.executeUpdate();
 			});
+
+			if (!packed && migrating)
+				changedGuilds.add(guild.getIdLong());
 		} catch (SQLException e) {
 			logger.error("Error while removing guild", e);
 			throw new RuntimeException(e);
+		} finally {
+			if (lock != null)
+				lock.unlock();
 		}
 	}
 
@@ -131,9 +866,12 @@ public class RoleStorageDatabase extends AbstractDatabase {
 	 * @param member - guild member to remove all roles from
 	 */
 	public void removeAllMemberRoles(Member member) {
+		Lock lock = lockRowLayout();
+
 		// Open a new connection with a prepared statement
 		try {
-			prepareStatement("rolelist_remove_role_all", statement -> {
+			boolean packed = usesPacked();
+			prepareStatement(packed ? PACKED_REMOVE_KEY : "rolelist_remove_role_all", statement -> {
 				statement.setLong(1, member.getIdLong());
 				statement.setLong(2, member.getGuild().getIdLong());
 
@@ -141,9 +879,15 @@ public class RoleStorageDatabase extends AbstractDatabase {
 
 				statement.executeUpdate();
 			});
+
+			if (!packed)
+				markChanged(member.getGuild().getIdLong(), member.getIdLong());
 		} catch (SQLException e) {
 			logger.error("Error while removing guild", e);
 			throw new RuntimeException(e);
+		} finally {
+			if (lock != null)
+				lock.unlock();
 		}
 	}
 
@@ -159,19 +903,13 @@ public class RoleStorageDatabase extends AbstractDatabase {
 		if (roles.size() < 0)
 			throw new IllegalArgumentException("Unable to use empty list of roles");
 
-		// Open a new connection with a prepared statement
-		try {
-			prepareStatement(INSERT_ROLE_KEY, statement -> {
-				for (Role role : roles) {
-					statement.setLong(1, member.getIdLong());
-					statement.setLong(2, member.getGuild().getIdLong());
-					statement.setLong(3, role.getIdLong());
-				}
+		if (roles.isEmpty())
+			return;
 
-				logger.trace(statement.toString());
+		membershipFilter.add(member.getGuild().getIdLong(), member.getIdLong());
 
-				statement.executeBatch();
-			});
+		try {
+			write(writer -> writer.insert(toItems(member, roles)));
 		} catch (SQLException e) {
 			logger.error("Error while updating member roles", e);
 			throw new RuntimeException(e);
@@ -190,25 +928,129 @@ public class RoleStorageDatabase extends AbstractDatabase {
 		if (roles.size() < 0)
 			throw new IllegalArgumentException("Unable to use empty list of roles");
 
-		// Open a new connection with a prepared statement
-		try {
-			prepareStatement(REMOVE_ROLE_KEY, statement -> {
-				for (Role role : roles) {
-					statement.setLong(1, member.getIdLong());
-					statement.setLong(2, member.getGuild().getIdLong());
-					statement.setLong(3, role.getIdLong());
-				}
-
-				logger.trace(statement.toString());
+		if (roles.isEmpty())
+			return;
 
-				statement.executeBatch();
-			});
+		try {
+			write(writer -> writer.remove(toItems(member, roles)));
 		} catch (SQLException e) {
 			logger.error("Error while updating member roles", e);
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Run a write operation inside of a transaction on a new connection.
+	 * Transient errors are retried with an exponential backoff up to
+	 * {@link WorkerSettings#maxRetries()} times, the same as batched writes.
+	 * 
+	 * @param operation - operation to run
+	 * 
+	 * @throws SQLException Thrown if the operation failed
+	 */
+	private void write(RoleWriterOperation operation) throws SQLException {
+		for (int attempt = 0;; attempt++) {
+			try {
+				writeOnce(operation);
+				return;
+			} catch (SQLException e) {
+				// Concurrent inserts of the same new packed member roll back all but one
+				if (attempt >= settings.maxRetries() || !BatchWorker.isTransient(e))
+					throw e;
+
+				long delay = settings.retryDelay() << Math.min(attempt, 16);
+				logger.warn("Transient error while updating member roles (state={}). Retrying in {} ms [{}/{}]",
+						e.getSQLState(), delay, attempt + 1, settings.maxRetries());
+
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					e.addSuppressed(ie);
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run a write operation inside of a transaction on a new connection once.
+	 * 
+	 * @param operation - operation to run
+	 * 
+	 * @throws SQLException Thrown if the operation failed
+	 */
+	private void writeOnce(RoleWriterOperation operation) throws SQLException {
+		try (Connection conn = openConnection(); RoleWriter writer = createWriter()) {
+			conn.setAutoCommit(false);
+			writer.open(conn);
+
+			try {
+				operation.accept(writer);
+				conn.commit();
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			} finally {
+				writer.finishTransaction();
+			}
+		}
+	}
+
+	/**
+	 * Convert roles of a member into batch items.
+	 * 
+	 * @param member - member the roles belong to
+	 * @param roles  - roles to convert
+	 * 
+	 * @return A {@link RoleBatch} of {@code [memberID, guildID, roleID]} triples
+	 */
+	private static RoleBatch toItems(Member member, Collection<Role> roles) {
+		long memberID = member.getIdLong();
+		long guildID = member.getGuild().getIdLong();
+
+		long[] items = new long[roles.size() * 3];
+		int size = 0;
+		for (Role role : roles) {
+			items[size * 3] = memberID;
+			items[size * 3 + 1] = guildID;
+			items[size * 3 + 2] = role.getIdLong();
+			size++;
+		}
+		return RoleBatch.of(items, size);
+	}
+
+	/**
+	 * Create a new writer for the configured storage layout. Until the migration
+	 * to the packed layout has completed, the writer switches layouts along with
+	 * it.
+	 * 
+	 * @return A new {@link RoleWriter}
+	 */
+	private RoleWriter createWriter() {
+		RoleWriter rows = new RowRoleWriter(getRawStatement(INSERT_ROLE_KEY), getRawStatement(REMOVE_ROLE_KEY));
+		if (storageMode == StorageMode.ROWS)
+			return rows;
+
+		if (packedMigrated)
+			return createPackedWriter(() -> packedMigrated);
+
+		return new MigratingRoleWriter(rows, createPackedWriter(() -> true), () -> packedMigrated,
+				layoutLock.readLock(), this::markChanged);
+	}
+
+	/**
+	 * Create a new writer of the packed layout.
+	 * 
+	 * @param writable - check if the packed layout may be written to
+	 * 
+	 * @return A new {@link PackedRoleWriter}
+	 */
+	private PackedRoleWriter createPackedWriter(BooleanSupplier writable) {
+		return new PackedRoleWriter(getRawStatement(PACKED_SELECT_KEY), getRawStatement(PACKED_INSERT_KEY),
+				getRawStatement(PACKED_UPDATE_KEY), getRawStatement(PACKED_REMOVE_KEY), writable);
+	}
+
 	/**
 	 * Create a new worker to insert/delete roles in mass.
 	 * 
@@ -217,9 +1059,11 @@ public class RoleStorageDatabase extends AbstractDatabase {
 	public BatchWorker getBatchWorker() {
 		try {
 			BatchWorker worker = new BatchWorker(
-					new BatchData<>(openConnection(), new LinkedList<>(), new LinkedList<>(),
-							() -> getRawStatement(INSERT_ROLE_KEY), () -> getRawStatement(INSERT_ROLE_KEY), batchSize));
+					new BatchData<>(this::openConnection, new ConcurrentLinkedQueue<>(), new ConcurrentLinkedQueue<>(),
+							createWriter(), settings, controller, membershipFilter));
 			worker.start();
+			workers.removeIf(w -> !w.isRunning());
+			workers.add(worker);
 			return worker;
 		} catch (Exception e) {
 
@@ -227,9 +1071,292 @@ public class RoleStorageDatabase extends AbstractDatabase {
 		}
 	}
 
+	/**
+	 * Get the total number of rows waiting to be written by all running workers.
+	 * 
+	 * @return The combined queue depth of all running {@link BatchWorker
+	 *         BatchWorkers}
+	 */
+	public int getPendingWrites() {
+		workers.removeIf(worker -> !worker.isRunning());
+		return workers.stream().mapToInt(BatchWorker::getPendingCount).sum();
+	}
+
+	/**
+	 * Get the layout used to store roles.
+	 * 
+	 * @return The {@link StorageMode} of this database
+	 */
+	public StorageMode getStorageMode() {
+		return storageMode;
+	}
+
+	/**
+	 * Get the controller used to tune the batch size of all workers.
+	 * 
+	 * @return The {@link BatchSizeController} of this database
+	 */
+	public BatchSizeController getBatchSizeController() {
+		return controller;
+	}
+
 	@Override
-	public void close() throws Exception {}
+	public void close() throws Exception {
+		Thread thread = migration;
+		if (thread != null)
+			thread.interrupt();
+	}
 
 	@Override
-	protected void onReady() {}
-}
+	protected void onReady() {
+		try {
+			prepareStatement("rolelist_create_lease_table", statement -> statement.executeUpdate());
+		} catch (SQLException e) {
+			logger.error("Error while creating lease table", e);
+		}
+
+		try {
+			prepareStatement("rolelist_create_sequence_table", statement -> statement.executeUpdate());
+			prepareStatement("rolelist_init_sequence", statement -> statement.executeUpdate());
+		} catch (SQLException e) {
+			logger.error("Error while creating write sequence table", e);
+		}
+
+		// Serves the per-guild and per-role queries. The unique key starts with MemberID
+		try {
+			prepareStatement("rolelist_create_guild_role_index", statement -> statement.executeUpdate());
+			logger.info("Created GuildRole index");
+		} catch (SQLException e) {
+			if (e.getErrorCode() != ER_DUP_KEYNAME && !"42S11".equals(e.getSQLState()))
+				logger.error("Error while creating GuildRole index", e);
+		}
+
+		Optional<Timestamp> migrated = Optional.empty();
+		try {
+			prepareStatement("rolelist_create_migration_table", statement -> statement.executeUpdate());
+			migrated = getMigration(PACKED_MIGRATION);
+		} catch (SQLException e) {
+			logger.error("Error while reading migrations", e);
+		}
+
+		if (storageMode == StorageMode.ROWS) {
+			// Writes made in PACKED mode never reach the row layout
+			migrated.ifPresent(time -> logger.warn("Roles were migrated to the packed layout at {}. Roles stored in "
+					+ "PACKED mode since then are missing from RoleList", time));
+			return;
+		}
+
+		try {
+			prepareStatement("rolepacked_create_table", statement -> statement.executeUpdate());
+
+			// Copy existing rows until the migration has completed once
+			if (migrated.isPresent())
+				packedMigrated = true;
+			else
+				startMigration();
+		} catch (SQLException e) {
+			logger.error("Error while preparing packed role table", e);
+		}
+	}
+
+	/**
+	 * Start copying rows into the packed layout on a background thread. Roles are
+	 * read from and written to the row layout until the copy has completed.
+	 */
+	private void startMigration() {
+		// Record changes made before the thread gets to start the copy
+		migrating = true;
+
+		Thread thread = new Thread(() -> {
+			try {
+				migrateToPacked();
+			} catch (RuntimeException e) {
+				logger.warn("Roles stay in the row layout until the migration completes on a later start");
+			}
+		}, "Packed Migration");
+		thread.setDaemon(true);
+		migration = thread;
+		thread.start();
+	}
+
+	/**
+	 * Wait for a migration to the packed layout started by this database to end.
+	 * 
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	void awaitMigration() throws InterruptedException {
+		Thread thread = migration;
+		if (thread != null)
+			thread.join();
+	}
+
+	/**
+	 * Check if all rows have been copied into the packed layout. Roles are read
+	 * from and written to the row layout until this is the case.
+	 * 
+	 * @return Returns {@code true} if the packed layout may be used
+	 */
+	public boolean isPackedMigrated() {
+		return packedMigrated;
+	}
+
+	/**
+	 * Get the time a migration was completed.
+	 * 
+	 * @param name - name of the migration
+	 * 
+	 * @return An {@link Optional} holding the completion time, or empty if the
+	 *         migration has not completed
+	 * 
+	 * @throws SQLException Thrown if the migration table could not be read
+	 */
+	private Optional<Timestamp> getMigration(String name) throws SQLException {
+		return mapStatement("rolelist_get_migration", statement -> {
+			statement.setString(1, name);
+			try (ResultSet result = statement.executeQuery()) {
+				return result.next() ? result.getTimestamp(1) : null;
+			}
+		});
+	}
+
+	/**
+	 * Class used to collect the rows of each member during
+	 * {@link RoleStorageDatabase#migrateToPacked()} and write them as packed rows.
+	 * Rows of a member must arrive in one run.
+	 * 
+	 * @author Ashley
+	 *
+	 */
+	private static class PackedMigration {
+		private final PreparedStatement insert;
+		private final Connection connection;
+		private final int batchSize;
+
+		private long memberID = -1;
+		private long guildID = -1;
+		private long[] roles = new long[16];
+		private int count;
+
+		private long rows;
+		private long members;
+		private long bytes;
+
+		PackedMigration(PreparedStatement insert, Connection connection, int batchSize) {
+			this.insert = insert;
+			this.connection = connection;
+			this.batchSize = batchSize;
+		}
+
+		/**
+		 * Add a row of the row layout.
+		 * 
+		 * @param memberID - ID of the member
+		 * @param guildID  - ID of the guild
+		 * @param roleID   - ID of the role
+		 * 
+		 * @throws SQLException Thrown if a batch could not be written
+		 */
+		void accept(long memberID, long guildID, long roleID) throws SQLException {
+			if (memberID != this.memberID || guildID != this.guildID) {
+				flushMember();
+				this.memberID = memberID;
+				this.guildID = guildID;
+			}
+
+			if (count == roles.length)
+				roles = Arrays.copyOf(roles, count * 2);
+			roles[count++] = roleID;
+			rows++;
+		}
+
+		/**
+		 * Add the rows of a query returning member ID, guild ID and role ID.
+		 * 
+		 * @param statement - query to execute
+		 * 
+		 * @throws SQLException Thrown if the query failed or a batch could not be
+		 *                      written
+		 */
+		void copy(PreparedStatement statement) throws SQLException {
+			try (ResultSet result = statement.executeQuery()) {
+				while (result.next())
+					accept(result.getLong(1), result.getLong(2), result.getLong(3));
+			}
+		}
+
+		/**
+		 * Write the last member and any remaining batch.
+		 * 
+		 * @throws SQLException Thrown if the batch could not be written
+		 */
+		void finish() throws SQLException {
+			flushMember();
+			insert.executeBatch();
+			connection.commit();
+		}
+
+		/**
+		 * Add the collected member to the batch, writing the batch if it is full.
+		 * 
+		 * @throws SQLException Thrown if the batch could not be written
+		 */
+		private void flushMember() throws SQLException {
+			if (count == 0)
+				return;
+
+			byte[] packed = RoleCodec.encode(Arrays.copyOf(roles, count));
+			insert.setLong(1, memberID);
+			insert.setLong(2, guildID);
+			insert.setBytes(3, packed);
+			insert.addBatch();
+
+			members++;
+			bytes += packed.length;
+			count = 0;
+
+			if (members % batchSize == 0) {
+				insert.executeBatch();
+				connection.commit();
+
+				if (Thread.currentThread().isInterrupted())
+					throw new SQLException("Migration to packed layout was interrupted");
+			}
+		}
+	}
+
+	/**
+	 * Member of a guild.
+	 */
+	private record MemberKey(long guildID, long memberID) {}
+
+	/**
+	 * Functional interface receiving two primitive longs.
+	 * 
+	 * @author Ashley
+	 *
+	 */
+	@FunctionalInterface
+	public interface LongBiConsumer {
+		public void accept(long first, long second);
+	}
+
+	@FunctionalInterface
+	private interface StatementSetter {
+		public void accept(PreparedStatement statement) throws SQLException;
+	}
+
+	@FunctionalInterface
+	private interface PackedRowConsumer {
+		public void accept(long memberID, long[] roles);
+	}
+
+	@FunctionalInterface
+	private interface RoleWriterOperation {
+		public void accept(RoleWriter writer) throws SQLException;
+	}
+
+	@FunctionalInterface
+	private interface RowConsumer {
+		public void accept(ResultSet result) throws SQLException;
+	}
+}
\ No newline at end of file
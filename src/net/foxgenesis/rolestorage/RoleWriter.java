@@ -0,0 +1,56 @@
+package net.foxgenesis.rolestorage;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Interface used to write batches of role changes using a single connection.
+ * Each row of a {@link RoleBatch} is a {@code [memberID, guildID, roleID]}
+ * triple. Implementations do not commit; that is left to the caller, and must
+ * not keep a reference to a batch after returning.
+ * 
+ * @author Ashley
+ *
+ */
+public interface RoleWriter extends AutoCloseable {
+
+	/**
+	 * Prepare all statements on a connection. Any previously prepared statements
+	 * are discarded.
+	 * 
+	 * @param connection - connection to use
+	 * 
+	 * @throws SQLException Thrown if a statement could not be prepared
+	 */
+	public void open(Connection connection) throws SQLException;
+
+	/**
+	 * Store roles for members.
+	 * 
+	 * @param items - roles to insert
+	 * 
+	 * @throws SQLException Thrown if the roles could not be written
+	 */
+	public void insert(RoleBatch items) throws SQLException;
+
+	/**
+	 * Remove stored roles from members.
+	 * 
+	 * @param items - roles to remove
+	 * 
+	 * @throws SQLException Thrown if the roles could not be removed
+	 */
+	public void remove(RoleBatch items) throws SQLException;
+
+	/**
+	 * Called after the transaction this writer was used in has been committed or
+	 * has failed.
+	 */
+	public default void finishTransaction() {}
+
+	/**
+	 * Close all prepared statements, ignoring any errors.
+	 */
+	@Override
+	public void close();
+}
@@ -0,0 +1,104 @@
+package net.foxgenesis.rolestorage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * {@link RoleWriter} for {@link StorageMode#ROWS} that writes one row per
+ * member, guild and role.
+ * 
+ * @author Ashley
+ *
+ */
+public class RowRoleWriter implements RoleWriter {
+
+	/**
+	 * SQL used to insert a role
+	 */
+	private final String insertSQL;
+
+	/**
+	 * SQL used to remove a role
+	 */
+	private final String removeSQL;
+
+	/**
+	 * Prepared insert statement
+	 */
+	private PreparedStatement insertStatement;
+
+	/**
+	 * Prepared remove statement
+	 */
+	private PreparedStatement removeStatement;
+
+	/**
+	 * Create a new writer using the provided statements.
+	 * 
+	 * @param insertSQL - SQL used to insert a role
+	 * @param removeSQL - SQL used to remove a role
+	 */
+	public RowRoleWriter(String insertSQL, String removeSQL) {
+		this.insertSQL = insertSQL;
+		this.removeSQL = removeSQL;
+	}
+
+	@Override
+	public void open(Connection connection) throws SQLException {
+		close();
+		insertStatement = connection.prepareStatement(insertSQL);
+		removeStatement = connection.prepareStatement(removeSQL);
+	}
+
+	@Override
+	public void insert(RoleBatch items) throws SQLException {
+		executeBatch(insertStatement, items);
+	}
+
+	@Override
+	public void remove(RoleBatch items) throws SQLException {
+		executeBatch(removeStatement, items);
+	}
+
+	/**
+	 * Execute a batch of rows using the provided statement.
+	 * 
+	 * @param statement - prepared statement to use
+	 * @param items     - rows to write
+	 * 
+	 * @throws SQLException Thrown if the batch failed to execute
+	 */
+	private static void executeBatch(PreparedStatement statement, RoleBatch items) throws SQLException {
+		try {
+			for (int i = 0; i < items.size(); i++) {
+				statement.setLong(1, items.memberID(i));
+				statement.setLong(2, items.guildID(i));
+				statement.setLong(3, items.roleID(i));
+				statement.addBatch();
+			}
+
+			statement.executeBatch();
+		} catch (SQLException e) {
+			try {
+				statement.clearBatch();
+			} catch (SQLException e2) {
+				e.addSuppressed(e2);
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() {
+		for (PreparedStatement statement : new PreparedStatement[] { insertStatement, removeStatement }) {
+			try {
+				if (statement != null)
+					statement.close();
+			} catch (SQLException e) {}
+		}
+
+		insertStatement = null;
+		removeStatement = null;
+	}
+}
@@ -0,0 +1,24 @@
+package net.foxgenesis.rolestorage;
+
+/**
+ * Layout used to store member roles in the database.
+ * 
+ * @author Ashley
+ *
+ */
+public enum StorageMode {
+	/**
+	 * One row per member, guild and role in {@code RoleList}
+	 */
+	ROWS,
+
+	/**
+	 * One row per member and guild in {@code RoleListPacked} holding all role IDs
+	 * encoded by {@link RoleCodec}. Existing rows are copied from {@code RoleList}
+	 * in the background until the migration has completed once, while roles are
+	 * still read from and written to {@code RoleList}. Roles stored after the
+	 * migration are never written back to {@code RoleList}, so there is no path
+	 * back to {@link #ROWS}
+	 */
+	PACKED
+}
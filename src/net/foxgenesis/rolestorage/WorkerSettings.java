@@ -0,0 +1,56 @@
+package net.foxgenesis.rolestorage;
+
+/**
+ * Record containing all settings used by a {@link BatchWorker}.
+ * 
+ * @author Ashley
+ *
+ * @param batchSize     - initial threshold for batch updates
+ * @param minBatchSize  - lower bound of the adaptive batch size
+ * @param maxBatchSize  - upper bound of the adaptive batch size
+ * @param targetLatency - target time in milliseconds for a single batch to
+ *                      execute
+ * @param maxRetries    - maximum number of retries for a batch that failed with
+ *                      a transient error
+ * @param retryDelay    - initial delay in milliseconds before retrying a failed
+ *                      batch. Doubled on every retry
+ */
+public record WorkerSettings(int batchSize, int minBatchSize, int maxBatchSize, long targetLatency, int maxRetries,
+		long retryDelay) {
+
+	/**
+	 * Default worker settings
+	 */
+	public static final WorkerSettings DEFAULT = new WorkerSettings(1000, 100, 5000, 250, 5, 50);
+
+	/**
+	 * Create a new instance and validate all settings.
+	 * 
+	 * @throws IllegalArgumentException If any batch size is not positive,
+	 *                                  {@code minBatchSize > maxBatchSize} or any
+	 *                                  other setting is negative
+	 */
+	public WorkerSettings {
+		if (batchSize <= 0 || minBatchSize <= 0 || maxBatchSize <= 0)
+			throw new IllegalArgumentException("Batch sizes must be greater than zero");
+		if (minBatchSize > maxBatchSize)
+			throw new IllegalArgumentException("Minimum batch size must not exceed the maximum batch size");
+		if (targetLatency < 0)
+			throw new IllegalArgumentException("Target latency must not be negative");
+		if (maxRetries < 0)
+			throw new IllegalArgumentException("Max retries must not be negative");
+		if (retryDelay < 0)
+			throw new IllegalArgumentException("Retry delay must not be negative");
+	}
+
+	/**
+	 * Create a copy of these settings with a fixed batch size.
+	 * 
+	 * @param batchSize - batch size to use
+	 * 
+	 * @return New settings where the batch size can not be adjusted
+	 */
+	public WorkerSettings withFixedBatchSize(int batchSize) {
+		return new WorkerSettings(batchSize, batchSize, batchSize, targetLatency, maxRetries, retryDelay);
+	}
+}
@@ -0,0 +1,54 @@
+package net.foxgenesis.database;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import javax.sql.DataSource;
+
+/**
+ * {@link AConnectionProvider} handing out connections of an embedded
+ * {@link DataSource}. Databases are set up through it the same way the bot
+ * sets up registered databases, so they use their inherited statement and
+ * connection helpers unchanged.
+ *
+ * @author Ashley
+ *
+ */
+public final class EmbeddedConnectionProvider extends AConnectionProvider {
+
+	/**
+	 * Source of all connections
+	 */
+	private final DataSource source;
+
+	/**
+	 * Create a new provider for a data source.
+	 *
+	 * @param source - embedded data source
+	 * @param name   - name of the provider
+	 */
+	public EmbeddedConnectionProvider(DataSource source, String name) {
+		super(new Properties(), name);
+		this.source = source;
+	}
+
+	@Override
+	public Connection openConnection() throws SQLException {
+		return source.getConnection();
+	}
+
+	/**
+	 * Load the statements of a database, connect it to this provider and mark it
+	 * as ready.
+	 *
+	 * @param database - database to set up
+	 *
+	 * @throws IOException Thrown if the statements of the database could not be
+	 *                     read
+	 */
+	public void setup(AbstractDatabase database) throws IOException {
+		database.setup(this);
+	}
+}
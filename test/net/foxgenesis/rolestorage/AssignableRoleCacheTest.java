@@ -0,0 +1,93 @@
+package net.foxgenesis.rolestorage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import net.foxgenesis.rolestorage.AssignableRoleCache.GuildRoles;
+import net.foxgenesis.rolestorage.FakeDiscord.FakeGuild;
+
+import net.dv8tion.jda.api.entities.Role;
+
+/**
+ * Tests of {@link AssignableRoleCache} against a {@link FakeDiscord}.
+ *
+ * @author Ashley
+ *
+ */
+class AssignableRoleCacheTest {
+
+	@Test
+	void publicAndManagedRolesAreNotStored() {
+		FakeDiscord discord = new FakeDiscord();
+		FakeGuild guild = discord.guild("guild", 3);
+		GuildRoles roles = new AssignableRoleCache().get(guild.guild);
+
+		Role everyone = guild.roles.get(0), managed = guild.roles.get(1);
+		assertFalse(roles.isStorable(everyone.getIdLong()));
+		assertFalse(roles.isAssignable(everyone.getIdLong()));
+		assertFalse(roles.isStorable(managed.getIdLong()));
+		assertFalse(roles.isAssignable(managed.getIdLong()));
+
+		assertArrayEquals(ids(guild.assignable()), roles.storable());
+		assertArrayEquals(ids(guild.assignable()), roles.assignable());
+		assertTrue(roles.hasAssignable());
+	}
+
+	@Test
+	void rolesAboveTheBotAreStoredButNotAssigned() {
+		FakeDiscord discord = new FakeDiscord();
+		FakeGuild guild = discord.guild("guild", 3);
+		Role above = guild.assignable().get(1);
+		discord.moveRole(guild, above, 2_000_000);
+
+		GuildRoles roles = new AssignableRoleCache().get(guild.guild);
+		assertTrue(roles.isStorable(above.getIdLong()));
+		assertFalse(roles.isAssignable(above.getIdLong()));
+		assertTrue(roles.isAssignable(guild.assignable().get(0).getIdLong()));
+		assertTrue(roles.isAssignable(guild.assignable().get(2).getIdLong()));
+	}
+
+	@Test
+	void nothingIsAssignedWithoutManageRoles() {
+		FakeDiscord discord = new FakeDiscord();
+		FakeGuild guild = discord.guild("guild", 3);
+		discord.setPermissions(guild, guild.roles.get(1));
+
+		GuildRoles roles = new AssignableRoleCache().get(guild.guild);
+		assertArrayEquals(ids(guild.assignable()), roles.storable());
+		assertFalse(roles.hasAssignable());
+	}
+
+	@Test
+	void entriesAreKeptUntilInvalidated() {
+		FakeDiscord discord = new FakeDiscord();
+		FakeGuild guild = discord.guild("guild", 2);
+		FakeGuild other = discord.guild("other", 2);
+		AssignableRoleCache cache = new AssignableRoleCache();
+		GuildRoles roles = cache.get(guild.guild);
+		GuildRoles otherRoles = cache.get(other.guild);
+
+		Role created = discord.createRole(guild).getRole();
+		assertSame(roles, cache.get(guild.guild));
+		assertFalse(cache.get(guild.guild).isStorable(created.getIdLong()));
+
+		cache.invalidate(guild.id);
+		assertNotSame(roles, cache.get(guild.guild));
+		assertTrue(cache.get(guild.guild).isAssignable(created.getIdLong()));
+		assertSame(otherRoles, cache.get(other.guild));
+	}
+
+	/**
+	 * Get the sorted IDs of roles.
+	 */
+	static long[] ids(List<Role> roles) {
+		return roles.stream().mapToLong(Role::getIdLong).sorted().toArray();
+	}
+}
@@ -0,0 +1,95 @@
+package net.foxgenesis.rolestorage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import net.foxgenesis.rolestorage.BatchSizeController.Decision;
+
+/**
+ * Tests for the decisions made by {@link BatchSizeController}.
+ *
+ * @author Ashley
+ *
+ */
+class BatchSizeControllerTest {
+
+	/**
+	 * Start at 1000 within [100, 5000] aiming for 250 ms batches
+	 */
+	private static final WorkerSettings SETTINGS = new WorkerSettings(1000, 100, 5000, 250, 5, 50);
+
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(1000);
+
+	@Test
+	void initialSizeIsClamped() {
+		assertEquals(100, new BatchSizeController(new WorkerSettings(1, 100, 5000, 250, 5, 50)).getBatchSize());
+		assertEquals(5000, new BatchSizeController(new WorkerSettings(9999, 100, 5000, 250, 5, 50)).getBatchSize());
+	}
+
+	@Test
+	void fastFullBatchIncreasesAdditively() {
+		BatchSizeController controller = new BatchSizeController(SETTINGS);
+
+		assertEquals(Decision.INCREASE, controller.record(1000, FAST, false));
+		assertEquals(1100, controller.getBatchSize());
+		assertEquals(1, controller.getIncreaseCount());
+	}
+
+	@Test
+	void fastPartialBatchHolds() {
+		BatchSizeController controller = new BatchSizeController(SETTINGS);
+
+		assertEquals(Decision.HOLD, controller.record(10, FAST, false));
+		assertEquals(1000, controller.getBatchSize());
+		assertEquals(1, controller.getHoldCount());
+	}
+
+	@Test
+	void slowBatchHalves() {
+		BatchSizeController controller = new BatchSizeController(SETTINGS);
+
+		assertEquals(Decision.DECREASE, controller.record(10, SLOW, false));
+		assertEquals(500, controller.getBatchSize());
+		assertEquals(1, controller.getDecreaseCount());
+		assertEquals(0, controller.getErrorCount());
+		assertEquals(1000, controller.getLastLatency());
+	}
+
+	@Test
+	void failedBatchHalves() {
+		BatchSizeController controller = new BatchSizeController(SETTINGS);
+
+		assertEquals(Decision.DECREASE, controller.record(1000, FAST, true));
+		assertEquals(500, controller.getBatchSize());
+		assertEquals(1, controller.getErrorCount());
+		assertEquals(Decision.DECREASE, controller.getLastDecision());
+	}
+
+	@Test
+	void sizeStaysWithinBounds() {
+		BatchSizeController controller = new BatchSizeController(SETTINGS);
+
+		for (int i = 0; i < 20; i++)
+			controller.record(1, SLOW, true);
+		assertEquals(100, controller.getBatchSize());
+		assertEquals(Decision.HOLD, controller.record(1, SLOW, true));
+
+		for (int i = 0; i < 100; i++)
+			controller.record(controller.getBatchSize(), FAST, false);
+		assertEquals(5000, controller.getBatchSize());
+		assertEquals(Decision.HOLD, controller.record(5000, FAST, false));
+	}
+
+	@Test
+	void fixedSizeNeverChanges() {
+		BatchSizeController controller = new BatchSizeController(SETTINGS.withFixedBatchSize(300));
+
+		assertEquals(Decision.HOLD, controller.record(300, FAST, false));
+		assertEquals(Decision.HOLD, controller.record(300, SLOW, true));
+		assertEquals(300, controller.getBatchSize());
+	}
+}
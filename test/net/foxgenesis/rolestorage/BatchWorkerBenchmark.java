@@ -0,0 +1,358 @@
+package net.foxgenesis.rolestorage;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+import net.foxgenesis.rolestorage.BatchWorker.BatchData;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+
+/**
+ * Producer latency of {@link BatchWorker} compared to the original
+ * monitor-based worker. Several producers submit roles while the worker writes
+ * batches to a simulated database that takes a fixed amount of time per batch.
+ * <p>
+ * Run with {@code mvn test -Pbench}.
+ * </p>
+ *
+ * @author Ashley
+ *
+ */
+@Tag("benchmark")
+class BatchWorkerBenchmark {
+
+	private static final int PRODUCERS = 8;
+	private static final int ITEMS_PER_PRODUCER = 100_000;
+	private static final int BATCH_SIZE = 1000;
+
+	/**
+	 * Time taken by the simulated database to write a batch
+	 */
+	private static final long WRITE_LATENCY = TimeUnit.MILLISECONDS.toNanos(5);
+
+	/**
+	 * Calls taking longer than this are counted as stalled
+	 */
+	private static final long STALL = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final Member[] members = new Member[1024];
+	private final Role[] roles = new Role[16];
+
+	BatchWorkerBenchmark() {
+		Guild guild = proxy(Guild.class, 1L, null);
+		for (int i = 0; i < members.length; i++)
+			members[i] = proxy(Member.class, 1000L + i, guild);
+		for (int i = 0; i < roles.length; i++)
+			roles[i] = proxy(Role.class, 100L + i, guild);
+	}
+
+	@Test
+	void producerLatency(TestReporter reporter) throws InterruptedException {
+		// Warm up both paths
+		run(MonitorWorker::new, ITEMS_PER_PRODUCER / 10);
+		run(this::lockFreeWorker, ITEMS_PER_PRODUCER / 10);
+
+		Result monitor = run(MonitorWorker::new, ITEMS_PER_PRODUCER);
+		Result lockFree = run(this::lockFreeWorker, ITEMS_PER_PRODUCER);
+
+		StringBuilder table = new StringBuilder();
+		table.append("%d producers, %d rows each, %d row batches, %d ms writes%n".formatted(PRODUCERS,
+				ITEMS_PER_PRODUCER, BATCH_SIZE, TimeUnit.NANOSECONDS.toMillis(WRITE_LATENCY)));
+		table.append("%-10s %10s %10s %12s %12s %8s %12s %14s%n".formatted("worker", "p50 (ns)", "p99 (ns)",
+				"p99.99 (ns)", "max (ns)", "stalls", "rows/s", "rows written"));
+		table.append(monitor.format("monitor"));
+		table.append(lockFree.format("lock-free"));
+		reporter.publishEntry("Producer latency", table.toString());
+	}
+
+	/**
+	 * Submit rows from all producers and collect the latency of every call.
+	 */
+	private Result run(Supplier<BenchWorker> factory, int items) throws InterruptedException {
+		long[][] latencies = new long[PRODUCERS][items];
+		CountDownLatch ready = new CountDownLatch(PRODUCERS);
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(PRODUCERS);
+
+		BenchWorker worker = factory.get();
+
+		for (int p = 0; p < PRODUCERS; p++) {
+			long[] samples = latencies[p];
+			int offset = p;
+			Thread thread = new Thread(() -> {
+				ready.countDown();
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				for (int i = 0; i < samples.length; i++) {
+					Member member = members[(i + offset * 131) & (members.length - 1)];
+					Role role = roles[i & (roles.length - 1)];
+
+					long begin = System.nanoTime();
+					worker.addMemberRole(member, role);
+					samples[i] = System.nanoTime() - begin;
+				}
+				done.countDown();
+			}, "Producer-" + p);
+			thread.start();
+		}
+
+		ready.await();
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+
+		worker.close();
+
+		long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+		return new Result(all, elapsed, worker.written());
+	}
+
+	private BenchWorker lockFreeWorker() {
+		SimulatedWriter writer = new SimulatedWriter();
+		WorkerSettings settings = WorkerSettings.DEFAULT.withFixedBatchSize(BATCH_SIZE);
+
+		BatchWorker worker = new BatchWorker(new BatchData<>(BatchWorkerBenchmark::connection,
+				new ConcurrentLinkedQueue<>(), new ConcurrentLinkedQueue<>(), writer, settings,
+				new BatchSizeController(settings), new MembershipFilter(1, 0.5, false)));
+		worker.start();
+
+		return new BenchWorker() {
+			@Override
+			public RoleBatchWorker addMemberRole(Member member, Role role) {
+				return worker.addMemberRole(member, role);
+			}
+
+			@Override
+			public RoleBatchWorker removeMemberRole(Member member, Role role) {
+				return worker.removeMemberRole(member, role);
+			}
+
+			@Override
+			public void flush() {
+				worker.flush();
+			}
+
+			@Override
+			public void close() {
+				worker.close();
+			}
+
+			@Override
+			public long written() {
+				return writer.written.sum();
+			}
+		};
+	}
+
+	/**
+	 * Simulate writing a batch to the database.
+	 */
+	private static void write() {
+		long deadline = System.nanoTime() + WRITE_LATENCY;
+		for (long remaining = WRITE_LATENCY; remaining > 0; remaining = deadline - System.nanoTime())
+			LockSupport.parkNanos(remaining);
+	}
+
+	/**
+	 * Connection that accepts every call and does nothing.
+	 */
+	private static Connection connection() {
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+					Class<?> type = method.getReturnType();
+					return type == boolean.class ? method.getName().equals("isValid") : null;
+				});
+	}
+
+	/**
+	 * Create a JDA entity that only answers {@code getIdLong} and
+	 * {@code getGuild}.
+	 */
+	private static <T> T proxy(Class<T> type, long id, Guild guild) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				(proxy, method, args) -> switch (method.getName()) {
+					case "getIdLong" -> id;
+					case "getGuild" -> guild;
+					case "hashCode" -> Long.hashCode(id);
+					case "equals" -> proxy == args[0];
+					case "toString" -> type.getSimpleName() + ":" + id;
+					default -> throw new UnsupportedOperationException(method.getName());
+				}));
+	}
+
+	private record Result(long[] latencies, long elapsed, long written) {
+		String format(String name) {
+			return "%-10s %10d %10d %12d %12d %8d %12.0f %14d%n".formatted(name, percentile(0.50),
+					percentile(0.99), percentile(0.9999), latencies[latencies.length - 1],
+					Arrays.stream(latencies).filter(latency -> latency > STALL).count(),
+					latencies.length / (elapsed / 1_000_000_000D), written);
+		}
+
+		long percentile(double p) {
+			return latencies[(int) Math.min(latencies.length - 1, Math.ceil(p * latencies.length) - 1)];
+		}
+	}
+
+	private interface BenchWorker extends RoleBatchWorker {
+		@Override
+		public void close();
+
+		/**
+		 * Get the number of rows written by the simulated database.
+		 */
+		public long written();
+	}
+
+	/**
+	 * {@link RoleWriter} that simulates a database write for every batch.
+	 */
+	private static class SimulatedWriter implements RoleWriter {
+		final LongAdder written = new LongAdder();
+
+		@Override
+		public void open(Connection connection) {}
+
+		@Override
+		public void insert(RoleBatch items) {
+			write();
+			written.add(items.size());
+		}
+
+		@Override
+		public void remove(RoleBatch items) {
+			write();
+			written.add(items.size());
+		}
+
+		@Override
+		public void close() {}
+	}
+
+	/**
+	 * Submission path of the original worker. Producers and the worker thread
+	 * share the monitor of the batch data, which the worker holds for the whole
+	 * write.
+	 */
+	private static class MonitorWorker implements BenchWorker {
+		private final Object batchData = new Object();
+		private final Queue<long[]> insertQueue = new LinkedList<>();
+		private final Queue<long[]> removeQueue = new LinkedList<>();
+		private final AtomicBoolean running = new AtomicBoolean();
+		private final AtomicBoolean processing = new AtomicBoolean();
+		private final AtomicBoolean flush = new AtomicBoolean();
+		private final LongAdder written = new LongAdder();
+		private final Thread thread = new Thread(this::run, "MonitorWorker");
+
+		MonitorWorker() {
+			thread.start();
+			while (!running.get())
+				Thread.onSpinWait();
+		}
+
+		private void run() {
+			running.set(true);
+			while (running.get()) {
+				synchronized (batchData) {
+					try {
+						while (!thresholdReached()) {
+							batchData.wait();
+							if (flush.get()) {
+								flush.set(false);
+								break;
+							}
+						}
+					} catch (InterruptedException e) {}
+
+					processQueue(insertQueue, flush.get());
+					processQueue(removeQueue, flush.get());
+					processing.set(false);
+				}
+			}
+		}
+
+		private void processQueue(Queue<long[]> queue, boolean flush) {
+			if (queue.size() > 0)
+				synchronized (queue) {
+					int size = 0;
+					while ((flush || size < BATCH_SIZE) && queue.poll() != null)
+						size++;
+
+					// Statement execution happened here while holding both monitors
+					write();
+					written.add(size);
+				}
+		}
+
+		private boolean thresholdReached() {
+			return insertQueue.size() + removeQueue.size() >= BATCH_SIZE;
+		}
+
+		private void addToBatch(Queue<long[]> queue, long[] data) {
+			synchronized (batchData) {
+				queue.add(data);
+				if (!processing.get() && thresholdReached()) {
+					processing.set(true);
+					batchData.notify();
+				}
+			}
+		}
+
+		@Override
+		public RoleBatchWorker addMemberRole(Member member, Role role) {
+			addToBatch(insertQueue,
+					new long[] { member.getIdLong(), member.getGuild().getIdLong(), role.getIdLong() });
+			return this;
+		}
+
+		@Override
+		public RoleBatchWorker removeMemberRole(Member member, Role role) {
+			addToBatch(removeQueue,
+					new long[] { member.getIdLong(), member.getGuild().getIdLong(), role.getIdLong() });
+			return this;
+		}
+
+		@Override
+		public void flush() {
+			synchronized (batchData) {
+				flush.set(true);
+				batchData.notify();
+			}
+		}
+
+		@Override
+		public void close() {
+			flush.set(true);
+			running.set(false);
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {}
+		}
+
+		@Override
+		public long written() {
+			return written.sum();
+		}
+	}
+}
@@ -0,0 +1,422 @@
+package net.foxgenesis.rolestorage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import net.foxgenesis.rolestorage.BatchWorker.BatchData;
+
+/**
+ * Tests for the batching, transaction and retry behavior of
+ * {@link BatchWorker}.
+ *
+ * @author Ashley
+ *
+ */
+@Timeout(30)
+class BatchWorkerTest {
+
+	private static final int BATCH_SIZE = 100;
+
+	/**
+	 * Opened connections
+	 */
+	private final AtomicInteger connections = new AtomicInteger();
+
+	/**
+	 * Committed transactions
+	 */
+	private final AtomicInteger commits = new AtomicInteger();
+
+	/**
+	 * Rolled back transactions
+	 */
+	private final AtomicInteger rollbacks = new AtomicInteger();
+
+	/**
+	 * Whether the current connection is still usable
+	 */
+	private final AtomicBoolean valid = new AtomicBoolean(true);
+
+	/**
+	 * Controller of the last started worker
+	 */
+	private BatchSizeController controller;
+
+	@Test
+	void closeWritesEverything() {
+		RecordingWriter writer = new RecordingWriter();
+		BatchWorker worker = start(writer, 0);
+
+		worker.addMemberRoles(rows(0, 1050), 1050 * 3);
+		worker.close();
+
+		assertEquals(1050, writer.rowCount());
+		assertEquals(0, worker.getPendingCount());
+		assertFalse(worker.isRunning());
+	}
+
+	@Test
+	void flushWritesThresholdSizedTransactions() throws InterruptedException {
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		RecordingWriter writer = new RecordingWriter() {
+			@Override
+			public void insert(RoleBatch items) throws SQLException {
+				// Hold the first batch so the queue can fill up behind it
+				if (blocked.getCount() > 0) {
+					blocked.countDown();
+					await(release);
+				}
+				super.insert(items);
+			}
+		};
+		BatchWorker worker = start(writer, 0);
+
+		worker.addMemberRoles(rows(0, BATCH_SIZE), BATCH_SIZE * 3);
+		assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+		// Closing while the worker is busy flushes the backlog
+		worker.addMemberRoles(rows(BATCH_SIZE, 1000), 1000 * 3);
+		Thread closer = new Thread(worker::close);
+		closer.start();
+		while (closer.getState() != Thread.State.WAITING)
+			Thread.onSpinWait();
+		release.countDown();
+		closer.join();
+
+		assertEquals(1100, writer.rowCount());
+		assertEquals(11, writer.batches.size());
+		for (long[] batch : writer.batches)
+			assertTrue(batch.length / 3 <= BATCH_SIZE, "batch of " + batch.length / 3);
+		assertEquals(11, commits.get());
+	}
+
+	@Test
+	void chunksAreSplitAcrossBatches() {
+		RecordingWriter writer = new RecordingWriter();
+		BatchWorker worker = start(writer, 0);
+
+		// One chunk larger than two batches followed by single rows
+		worker.addMemberRoles(rows(0, 250), 250 * 3);
+		for (long[] row : new long[][] { { 250, 1, 2 }, { 251, 1, 2 } })
+			worker.addMemberRoles(row, row.length);
+		worker.close();
+
+		assertEquals(252, writer.rowCount());
+		assertEquals(3, writer.batches.size());
+		assertArrayEquals(LongStream.range(0, 252).toArray(), writer.members().toArray());
+	}
+
+	@Test
+	void partialBufferIsCopied() {
+		RecordingWriter writer = new RecordingWriter();
+		BatchWorker worker = start(writer, 0);
+
+		long[] buffer = rows(0, 20);
+		worker.addMemberRoles(buffer, 10 * 3);
+		Arrays.fill(buffer, -1);
+		worker.close();
+
+		assertArrayEquals(LongStream.range(0, 10).toArray(), writer.members().toArray());
+	}
+
+	@Test
+	void incompleteTriplesAreRejected() {
+		BatchWorker worker = start(new RecordingWriter(), 0);
+
+		assertThrows(IllegalArgumentException.class, () -> worker.addMemberRoles(new long[4], 4));
+		worker.close();
+	}
+
+	@Test
+	void transientErrorsAreRetried() {
+		AtomicInteger failures = new AtomicInteger(2);
+		RecordingWriter writer = new RecordingWriter() {
+			@Override
+			public void insert(RoleBatch items) throws SQLException {
+				if (failures.getAndDecrement() > 0)
+					throw new SQLTransientException("Deadlock found", "40001", 1213);
+				super.insert(items);
+			}
+		};
+		BatchWorker worker = start(writer, 0);
+
+		worker.addMemberRoles(rows(0, 10), 10 * 3);
+		worker.close();
+
+		assertEquals(10, writer.rowCount());
+		assertEquals(1, writer.batches.size());
+		assertEquals(2, rollbacks.get());
+
+		// Retries are reported once for the whole batch
+		assertEquals(1, recorded());
+		assertEquals(1, controller.getErrorCount());
+	}
+
+	@Test
+	void failingRowIsIsolated() {
+		RecordingWriter writer = new RecordingWriter() {
+			@Override
+			public void insert(RoleBatch items) throws SQLException {
+				for (int i = 0; i < items.size(); i++)
+					if (items.memberID(i) == 37)
+						throw new SQLException("Data truncation", "22001");
+				super.insert(items);
+			}
+		};
+		BatchWorker worker = start(writer, 0);
+
+		worker.addMemberRoles(rows(0, 64), 64 * 3);
+		worker.close();
+
+		assertEquals(63, writer.rowCount());
+		assertTrue(writer.members().noneMatch(member -> member == 37));
+
+		// A bad row says nothing about database pressure
+		assertEquals(0, recorded());
+		assertEquals(0, controller.getErrorCount());
+	}
+
+	@Test
+	void transientErrorWhileBisectingIsReported() {
+		AtomicBoolean deadlocked = new AtomicBoolean();
+		RecordingWriter writer = new RecordingWriter() {
+			@Override
+			public void insert(RoleBatch items) throws SQLException {
+				for (int i = 0; i < items.size(); i++)
+					if (items.memberID(i) == 37)
+						throw new SQLException("Data truncation", "22001");
+				if (items.size() < 64 && deadlocked.compareAndSet(false, true))
+					throw new SQLTransientException("Deadlock found", "40001", 1213);
+				super.insert(items);
+			}
+		};
+		BatchWorker worker = start(writer, 0);
+
+		worker.addMemberRoles(rows(0, 64), 64 * 3);
+		worker.close();
+
+		assertEquals(63, writer.rowCount());
+		assertEquals(1, recorded());
+		assertEquals(1, controller.getErrorCount());
+	}
+
+	@Test
+	void exhaustedRetriesDropWholeBatch() {
+		List<Integer> attempts = new CopyOnWriteArrayList<>();
+		RecordingWriter writer = new RecordingWriter() {
+			@Override
+			public void insert(RoleBatch items) throws SQLException {
+				attempts.add(items.size());
+				throw new SQLTransientException("Lock wait timeout exceeded", "40001", 1205);
+			}
+		};
+		BatchWorker worker = start(writer, 0);
+
+		worker.addMemberRoles(rows(0, 64), 64 * 3);
+		worker.close();
+
+		// The first attempt and five retries, never bisected
+		assertEquals(Collections.nCopies(6, 64), attempts);
+		assertEquals(0, writer.rowCount());
+		assertEquals(1, recorded());
+		assertEquals(1, controller.getErrorCount());
+	}
+
+	@Test
+	void halvesShareRetriesOfTheirBatch() {
+		AtomicInteger attempts = new AtomicInteger();
+		RecordingWriter writer = new RecordingWriter() {
+			@Override
+			public void insert(RoleBatch items) throws SQLException {
+				attempts.incrementAndGet();
+				if (items.size() == 64)
+					throw new SQLException("Data truncation", "22001");
+				throw new SQLTransientException("Deadlock found", "40001", 1213);
+			}
+		};
+		BatchWorker worker = start(writer, 0);
+
+		worker.addMemberRoles(rows(0, 64), 64 * 3);
+		worker.close();
+
+		// Rejected once, then the first half uses every retry and the second half none
+		assertEquals(1 + 6 + 1, attempts.get());
+		assertEquals(0, writer.rowCount());
+		assertEquals(1, controller.getErrorCount());
+	}
+
+	@Test
+	void successfulBatchIsReportedOnce() {
+		RecordingWriter writer = new RecordingWriter();
+		BatchWorker worker = start(writer, 0);
+
+		worker.addMemberRoles(rows(0, 250), 250 * 3);
+		worker.close();
+
+		assertEquals(3, recorded());
+		assertEquals(0, controller.getErrorCount());
+	}
+
+	@Test
+	void lostConnectionIsReopened() {
+		AtomicBoolean failed = new AtomicBoolean();
+		RecordingWriter writer = new RecordingWriter() {
+			@Override
+			public void insert(RoleBatch items) throws SQLException {
+				if (failed.compareAndSet(false, true)) {
+					valid.set(false);
+					throw new SQLRecoverableException("Communications link failure", "08S01");
+				}
+				super.insert(items);
+			}
+		};
+		BatchWorker worker = start(writer, 0);
+
+		worker.addMemberRoles(rows(0, 10), 10 * 3);
+		worker.close();
+
+		assertEquals(10, writer.rowCount());
+		assertEquals(2, connections.get());
+		assertEquals(2, writer.opened.get());
+	}
+
+	@Test
+	void interruptStopsWorker() throws InterruptedException {
+		AtomicReference<Thread> thread = new AtomicReference<>();
+		CountDownLatch failed = new CountDownLatch(1);
+		RecordingWriter writer = new RecordingWriter() {
+			@Override
+			public void insert(RoleBatch items) throws SQLException {
+				thread.set(Thread.currentThread());
+				failed.countDown();
+				throw new SQLTransientException("Lock wait timeout exceeded", "40001", 1205);
+			}
+		};
+
+		// Retry far in the future so the worker is sleeping when interrupted
+		BatchWorker worker = start(writer, TimeUnit.MINUTES.toMillis(10));
+		worker.addMemberRoles(rows(0, BATCH_SIZE), BATCH_SIZE * 3);
+		assertTrue(failed.await(10, TimeUnit.SECONDS));
+
+		thread.get().interrupt();
+		thread.get().join(TimeUnit.SECONDS.toMillis(10));
+
+		assertFalse(thread.get().isAlive());
+		assertFalse(worker.isRunning());
+		worker.close();
+	}
+
+	/**
+	 * Start a worker with a fixed batch size.
+	 */
+	private BatchWorker start(RoleWriter writer, long retryDelay) {
+		WorkerSettings settings = new WorkerSettings(BATCH_SIZE, BATCH_SIZE, BATCH_SIZE, 250, 5, retryDelay);
+		controller = new BatchSizeController(settings);
+		BatchWorker worker = new BatchWorker(new BatchData<>(this::connection, new ConcurrentLinkedQueue<>(),
+				new ConcurrentLinkedQueue<>(), writer, settings, controller, new MembershipFilter(1, 0.5, false)));
+		worker.start();
+		return worker;
+	}
+
+	/**
+	 * Get the number of batches reported to the controller.
+	 */
+	private long recorded() {
+		return controller.getIncreaseCount() + controller.getDecreaseCount() + controller.getHoldCount();
+	}
+
+	/**
+	 * Open a connection that counts commits and rollbacks.
+	 */
+	private Connection connection() {
+		connections.incrementAndGet();
+		valid.set(true);
+
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, (proxy, method, args) -> switch (method.getName()) {
+					case "commit" -> commits.incrementAndGet();
+					case "rollback" -> rollbacks.incrementAndGet();
+					case "isValid" -> valid.get();
+					default -> method.getReturnType() == boolean.class ? false : null;
+				});
+	}
+
+	/**
+	 * Create {@code [memberID, guildID, roleID]} triples for a range of members.
+	 */
+	private static long[] rows(int from, int count) {
+		long[] rows = new long[count * 3];
+		for (int i = 0; i < count; i++) {
+			rows[i * 3] = from + i;
+			rows[i * 3 + 1] = 1;
+			rows[i * 3 + 2] = 2;
+		}
+		return rows;
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * {@link RoleWriter} that records every batch it was asked to insert.
+	 */
+	private static class RecordingWriter implements RoleWriter {
+		final List<long[]> batches = new CopyOnWriteArrayList<>();
+		final AtomicInteger opened = new AtomicInteger();
+
+		@Override
+		public void open(Connection connection) {
+			opened.incrementAndGet();
+		}
+
+		@Override
+		public void insert(RoleBatch items) throws SQLException {
+			batches.add(items.toArray());
+		}
+
+		@Override
+		public void remove(RoleBatch items) throws SQLException {}
+
+		@Override
+		public void close() {}
+
+		LongStream members() {
+			return batches.stream().flatMapToLong(batch -> IntStream.range(0, batch.length / 3)
+					.mapToLong(i -> batch[i * 3]));
+		}
+
+		int rowCount() {
+			return batches.stream().mapToInt(batch -> batch.length / 3).sum();
+		}
+	}
+}
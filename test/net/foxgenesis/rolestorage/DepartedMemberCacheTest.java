@@ -0,0 +1,221 @@
+package net.foxgenesis.rolestorage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link DepartedMemberCache}.
+ *
+ * @author Ashley
+ *
+ */
+class DepartedMemberCacheTest {
+
+	@Test
+	void takeReturnsAndRemovesEntry() {
+		DepartedMemberCache cache = new DepartedMemberCache(10, 100, 1, TimeUnit.HOURS);
+		cache.put(1, 2, new long[] { 3, 4 });
+
+		assertArrayEquals(new long[] { 3, 4 }, cache.take(1, 2));
+		assertNull(cache.take(1, 2));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	void entriesAreKeyedByGuildAndMember() {
+		DepartedMemberCache cache = new DepartedMemberCache(10, 100, 1, TimeUnit.HOURS);
+		cache.put(1, 2, new long[] { 3 });
+
+		assertNull(cache.take(2, 1));
+		assertNull(cache.take(1, 3));
+		assertArrayEquals(new long[] { 3 }, cache.take(1, 2));
+	}
+
+	@Test
+	void putCopiesRoles() {
+		DepartedMemberCache cache = new DepartedMemberCache(10, 100, 1, TimeUnit.HOURS);
+		long[] roles = { 3 };
+		cache.put(1, 2, roles);
+		roles[0] = 4;
+
+		assertArrayEquals(new long[] { 3 }, cache.take(1, 2));
+	}
+
+	@Test
+	void expiredEntriesAreNotReturned() {
+		DepartedMemberCache cache = new DepartedMemberCache(10, 100, 0, TimeUnit.SECONDS);
+		cache.put(1, 2, new long[] { 3 });
+
+		assertNull(cache.take(1, 2));
+	}
+
+	@Test
+	void expiredEntriesAreRemovedOnWrite() {
+		DepartedMemberCache cache = new DepartedMemberCache(10, 100, 0, TimeUnit.SECONDS);
+		cache.put(1, 2, new long[] { 3 });
+		cache.put(1, 3, new long[] { 3 });
+
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	void oldestEntryIsEvictedWhenFull() {
+		DepartedMemberCache cache = new DepartedMemberCache(2, 100, 1, TimeUnit.HOURS);
+		cache.put(1, 1, new long[] { 1 });
+		cache.put(1, 2, new long[] { 2 });
+		cache.put(1, 3, new long[] { 3 });
+
+		assertEquals(2, cache.size());
+		assertNull(cache.take(1, 1));
+		assertArrayEquals(new long[] { 2 }, cache.take(1, 2));
+		assertArrayEquals(new long[] { 3 }, cache.take(1, 3));
+	}
+
+	@Test
+	void replacingAnEntryRenewsIt() {
+		DepartedMemberCache cache = new DepartedMemberCache(2, 100, 1, TimeUnit.HOURS);
+		cache.put(1, 1, new long[] { 1 });
+		cache.put(1, 2, new long[] { 2 });
+		cache.put(1, 1, new long[] { 4 });
+		cache.put(1, 3, new long[] { 3 });
+
+		assertNull(cache.take(1, 2));
+		assertArrayEquals(new long[] { 4 }, cache.take(1, 1));
+	}
+
+	@Test
+	void oldestEntriesAreEvictedWhenRolesAreFull() {
+		DepartedMemberCache cache = new DepartedMemberCache(10, 4, 1, TimeUnit.HOURS);
+		cache.put(1, 1, new long[] { 1, 2 });
+		cache.put(1, 2, new long[] { 3, 4 });
+		cache.put(1, 3, new long[] { 5 });
+
+		assertEquals(2, cache.size());
+		assertEquals(3, cache.roleCount());
+		assertNull(cache.take(1, 1));
+		assertArrayEquals(new long[] { 3, 4 }, cache.take(1, 2));
+		assertArrayEquals(new long[] { 5 }, cache.take(1, 3));
+	}
+
+	@Test
+	void membersWithMoreRolesThanTheCacheAreNotStored() {
+		DepartedMemberCache cache = new DepartedMemberCache(10, 2, 1, TimeUnit.HOURS);
+		cache.put(1, 1, new long[] { 1 });
+		cache.put(1, 2, new long[] { 1, 2 });
+		cache.put(1, 2, new long[] { 1, 2, 3 });
+
+		// The previous entry of the member is still replaced
+		assertNull(cache.take(1, 2));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	void rolesWrapAroundTheRing() {
+		DepartedMemberCache cache = new DepartedMemberCache(10, 5, 1, TimeUnit.HOURS);
+		cache.put(1, 1, new long[] { 1, 2, 3 });
+		cache.put(1, 2, new long[] { 4, 5 });
+		cache.put(1, 3, new long[] { 6, 7, 8 });
+
+		assertNull(cache.take(1, 1));
+		assertArrayEquals(new long[] { 4, 5 }, cache.take(1, 2));
+		assertArrayEquals(new long[] { 6, 7, 8 }, cache.take(1, 3));
+	}
+
+	@Test
+	void agreesWithMapUnderRandomOperations() {
+		DepartedMemberCache cache = new DepartedMemberCache(256, 100_000, 1, TimeUnit.HOURS);
+		Map<List<Long>, long[]> expected = new HashMap<>();
+		Random random = new Random(7);
+		int present = 0;
+		int evicted = 0;
+
+		for (int i = 0; i < 100_000; i++) {
+			long guildID = random.nextInt(4);
+			long memberID = random.nextInt(48);
+			List<Long> key = List.of(guildID, memberID);
+
+			switch (random.nextInt(5)) {
+				case 0, 1 -> {
+					long[] roles = random.longs(random.nextInt(4), 0, 1000).toArray();
+					cache.put(guildID, memberID, roles);
+					expected.put(key, roles);
+				}
+				case 2, 3 -> {
+					// The cache may have evicted the member, but never returns stale roles
+					long[] roles = cache.take(guildID, memberID);
+					if (expected.containsKey(key))
+						present++;
+					if (roles != null)
+						assertArrayEquals(expected.get(key), roles);
+					else if (expected.containsKey(key))
+						evicted++;
+					expected.remove(key);
+				}
+				default -> {
+					if (random.nextInt(100) == 0) {
+						cache.removeGuild(guildID);
+						expected.keySet().removeIf(k -> k.get(0) == guildID);
+					}
+				}
+			}
+			assertTrue(cache.size() <= expected.size());
+		}
+		assertTrue(evicted < present / 4, evicted + " of " + present + " evicted");
+	}
+
+	@Test
+	void zeroSizedCacheStoresNothing() {
+		DepartedMemberCache cache = new DepartedMemberCache(0, 100, 1, TimeUnit.HOURS);
+		cache.put(1, 2, new long[] { 3 });
+
+		assertEquals(0, cache.size());
+		assertNull(cache.take(1, 2));
+	}
+
+	@Test
+	void removeGuildOnlyRemovesThatGuild() {
+		DepartedMemberCache cache = new DepartedMemberCache(10, 100, 1, TimeUnit.HOURS);
+		cache.put(1, 1, new long[] { 1 });
+		cache.put(1, 2, new long[] { 2 });
+		cache.put(2, 1, new long[] { 3 });
+
+		cache.removeGuild(1);
+
+		assertEquals(1, cache.size());
+		assertArrayEquals(new long[] { 3 }, cache.take(2, 1));
+	}
+
+	@Test
+	void hitRateCountsLookups() {
+		DepartedMemberCache cache = new DepartedMemberCache(10, 100, 1, TimeUnit.HOURS);
+		assertEquals(0, cache.getHitRate());
+
+		cache.put(1, 1, new long[] { 1 });
+		cache.take(1, 1);
+		cache.take(1, 1);
+		cache.take(1, 2);
+		cache.take(1, 3);
+
+		assertEquals(1, cache.getHitCount());
+		assertEquals(3, cache.getMissCount());
+		assertEquals(0.25, cache.getHitRate());
+	}
+
+	@Test
+	void negativeSettingsAreRejected() {
+		assertThrows(IllegalArgumentException.class, () -> new DepartedMemberCache(-1, 100, 1, TimeUnit.HOURS));
+		assertThrows(IllegalArgumentException.class, () -> new DepartedMemberCache(1, 100, -1, TimeUnit.HOURS));
+		assertThrows(IllegalArgumentException.class, () -> new DepartedMemberCache(1, -1, 1, TimeUnit.HOURS));
+	}
+}
@@ -0,0 +1,199 @@
+package net.foxgenesis.rolestorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import net.foxgenesis.database.EmbeddedConnectionProvider;
+
+/**
+ * In-memory H2 database running in MySQL mode with the schema and statements
+ * of the plugin. The database lives until {@link #close()} is called.
+ *
+ * @author Ashley
+ *
+ */
+final class EmbeddedDatabase implements AutoCloseable {
+
+	/**
+	 * Counter used to give every database a unique name
+	 */
+	private static final AtomicInteger COUNTER = new AtomicInteger();
+
+	/**
+	 * Statements of the plugin
+	 */
+	private static final Properties STATEMENTS = load("/META-INF/sql statements.kvp");
+
+	private final String url;
+
+	/**
+	 * Provider used to set up databases of the plugin
+	 */
+	private final EmbeddedConnectionProvider provider;
+
+	/**
+	 * Connection keeping the in-memory database alive
+	 */
+	private final Connection anchor;
+
+	private EmbeddedDatabase(String url) throws SQLException {
+		this.url = url;
+		this.anchor = DriverManager.getConnection(url);
+
+		JdbcDataSource source = new JdbcDataSource();
+		source.setURL(url);
+		this.provider = new EmbeddedConnectionProvider(source, url);
+
+		try (Statement statement = anchor.createStatement()) {
+			statement.execute("CREATE SCHEMA IF NOT EXISTS `WatameBot`");
+			statement.execute(resource("/META-INF/createRoleTable.sql"));
+		}
+	}
+
+	/**
+	 * Create a new empty database.
+	 *
+	 * @return A new {@link EmbeddedDatabase}
+	 *
+	 * @throws SQLException Thrown if the database could not be created
+	 */
+	static EmbeddedDatabase create() throws SQLException {
+		return new EmbeddedDatabase("jdbc:h2:mem:rolestorage" + COUNTER.incrementAndGet()
+				+ ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;CASE_INSENSITIVE_IDENTIFIERS=TRUE;LOCK_TIMEOUT=10000");
+	}
+
+	/**
+	 * Create a {@link RoleStorageDatabase}, set it up against this database
+	 * through an {@link EmbeddedConnectionProvider} and wait for any migration to
+	 * the packed layout to end.
+	 *
+	 * @param settings         - settings used by batch workers
+	 * @param membershipFilter - filter used to skip lookups of members without
+	 *                         stored roles
+	 * @param storageMode      - layout used to store roles
+	 *
+	 * @return A ready {@link RoleStorageDatabase}
+	 */
+	RoleStorageDatabase open(WorkerSettings settings, MembershipFilter membershipFilter, StorageMode storageMode) {
+		RoleStorageDatabase database = start(settings, membershipFilter, storageMode);
+		try {
+			database.awaitMigration();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+		return database;
+	}
+
+	/**
+	 * Create a {@link RoleStorageDatabase} and set it up against this database
+	 * through an {@link EmbeddedConnectionProvider} without waiting for a
+	 * migration to the packed layout.
+	 *
+	 * @param settings         - settings used by batch workers
+	 * @param membershipFilter - filter used to skip lookups of members without
+	 *                         stored roles
+	 * @param storageMode      - layout used to store roles
+	 *
+	 * @return A {@link RoleStorageDatabase} that may still be migrating
+	 */
+	RoleStorageDatabase start(WorkerSettings settings, MembershipFilter membershipFilter, StorageMode storageMode) {
+		RoleStorageDatabase database = new RoleStorageDatabase(settings, membershipFilter, storageMode);
+		try {
+			provider.setup(database);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return database;
+	}
+
+	/**
+	 * Open a new connection to this database.
+	 *
+	 * @return A new {@link Connection}
+	 *
+	 * @throws SQLException Thrown if the connection could not be opened
+	 */
+	Connection openConnection() throws SQLException {
+		return DriverManager.getConnection(url);
+	}
+
+	/**
+	 * Execute a statement.
+	 *
+	 * @param sql - SQL to execute
+	 *
+	 * @throws SQLException Thrown if the statement failed
+	 */
+	void execute(String sql) throws SQLException {
+		try (Statement statement = anchor.createStatement()) {
+			statement.execute(sql);
+		}
+	}
+
+	/**
+	 * Execute a query returning a single number.
+	 *
+	 * @param sql - SQL to execute
+	 *
+	 * @return The first column of the first row
+	 *
+	 * @throws SQLException Thrown if the query failed
+	 */
+	long queryLong(String sql) throws SQLException {
+		try (Statement statement = anchor.createStatement(); ResultSet result = statement.executeQuery(sql)) {
+			result.next();
+			return result.getLong(1);
+		}
+	}
+
+	/**
+	 * Get the SQL of a statement of the plugin.
+	 *
+	 * @param key - statement key
+	 *
+	 * @return The SQL of the statement
+	 */
+	static String statement(String key) {
+		return Objects.requireNonNull(STATEMENTS.getProperty(key), key);
+	}
+
+	@Override
+	public void close() throws SQLException {
+		try (Statement statement = anchor.createStatement()) {
+			statement.execute("SHUTDOWN");
+		} finally {
+			anchor.close();
+		}
+	}
+
+	private static Properties load(String path) {
+		Properties properties = new Properties();
+		try (InputStream in = EmbeddedDatabase.class.getResourceAsStream(path)) {
+			properties.load(Objects.requireNonNull(in, path));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return properties;
+	}
+
+	private static String resource(String path) {
+		try (InputStream in = EmbeddedDatabase.class.getResourceAsStream(path)) {
+			return new String(Objects.requireNonNull(in, path).readAllBytes(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
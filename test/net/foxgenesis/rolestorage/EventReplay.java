@@ -0,0 +1,708 @@
+package net.foxgenesis.rolestorage;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.foxgenesis.rolestorage.FakeDiscord.FakeGuild;
+import net.foxgenesis.rolestorage.FakeDiscord.FakeMember;
+
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.events.GenericEvent;
+
+/**
+ * Load generator replaying a synthetic stream of Discord events against a
+ * {@link GuildListener} backed by an embedded database. Guilds are scanned
+ * first, then several threads replay a weighted {@link Mix} of role changes,
+ * member departures and rejoins, and the bot leaving and rejoining a guild.
+ * Every thread owns a disjoint set of members so that the events of a member
+ * stay in order, the same way the gateway delivers them. While the bot is out
+ * of a guild, no thread replays events of that guild.
+ * <p>
+ * With a {@link Config#rate() rate}, events are replayed open loop: each event
+ * has a fixed start time on a schedule at the target rate, and its latency is
+ * measured from that time. An event that starts late because the previous one
+ * was slow counts the delay, so stalls are not hidden by the load backing off.
+ * Without a rate, every thread replays as fast as it can.
+ * </p>
+ * <p>
+ * The report holds the throughput and latency percentiles of each event type,
+ * the queue depth of the batch workers, and the heap usage and churn of the
+ * whole process. Afterwards the stored roles are compared with the model.
+ * </p>
+ * <p>
+ * Run with {@code mvn test -Pbench}, or directly through {@link #main(String[])}
+ * with the optional arguments
+ * {@code <mode> <guilds> <members per guild> <events> <threads> <events per second>}.
+ * </p>
+ *
+ * @author Ashley
+ *
+ */
+final class EventReplay {
+
+	/**
+	 * Interval in milliseconds between samples of queue depth and allocations
+	 */
+	private static final long SAMPLE_INTERVAL = 5;
+
+	private static final Logger logger = LoggerFactory.getLogger("EventReplay");
+
+	private final Config config;
+
+	EventReplay(Config config) {
+		this.config = config;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Config config = Config.DEFAULT;
+		if (args.length > 0)
+			config = config.withMode(StorageMode.valueOf(args[0].toUpperCase()));
+		if (args.length > 4)
+			config = new Config(config.mode(), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+					config.roles(), config.rolesPerMember(), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+					config.rate(), config.mix(), config.seed());
+		if (args.length > 5)
+			config = config.withRate(Integer.parseInt(args[5]));
+
+		System.out.print(new EventReplay(config).run().format());
+	}
+
+	/**
+	 * Run the replay.
+	 *
+	 * @return The {@link Report} of the run
+	 *
+	 * @throws Exception Thrown if the embedded database failed
+	 */
+	Report run() throws Exception {
+		try (EmbeddedDatabase embedded = EmbeddedDatabase.create()) {
+			MembershipFilter filter = new MembershipFilter(
+					(long) config.guilds() * config.members(), 0.01, true);
+			RoleStorageDatabase database = embedded.open(WorkerSettings.DEFAULT, filter, config.mode());
+			database.buildMembershipFilter();
+
+			// Small departed cache so rejoins are restored from both the cache and the database
+			int departedMembers = config.threads() * 4;
+			DepartedMemberCache departed = new DepartedMemberCache(departedMembers,
+					departedMembers * config.rolesPerMember(), 1, TimeUnit.HOURS);
+			LeaseManager leases = new LeaseManager(database, "replay", 60, false);
+
+			FakeDiscord discord = new FakeDiscord();
+			List<FakeGuild> guilds = populate(discord);
+
+			GuildListener listener = new GuildListener(guild -> true, database, departed, leases,
+					Runtime.getRuntime().availableProcessors(), 2);
+			Sampler sampler = new Sampler(database);
+			sampler.start();
+
+			try {
+				// Phase 1: the bot joins every guild and scans its members
+				Recorder scans = new Recorder();
+				long scanStart = System.nanoTime();
+				for (FakeGuild guild : guilds)
+					scans.record(EventType.SCAN, () -> listener.onEvent(discord.guildJoin(guild)));
+				long scanTime = System.nanoTime() - scanStart;
+				long scanned = embedded.queryLong(config.mode() == StorageMode.PACKED
+						? "SELECT COUNT(*) FROM `WatameBot`.`RoleListPacked`"
+						: "SELECT COUNT(*) FROM (SELECT DISTINCT GuildID, MemberID FROM `WatameBot`.`RoleList`) AS M");
+
+				// Phase 2: replay events on several threads
+				Recorder[] recorders = new Recorder[config.threads()];
+				CountDownLatch start = new CountDownLatch(1);
+				AtomicLong epoch = new AtomicLong();
+				List<Thread> threads = new ArrayList<>();
+				AtomicLong errors = new AtomicLong();
+				LongAdder mismatchedRestores = new LongAdder();
+				Replayer replayer = new Replayer(discord, listener, guilds, mismatchedRestores);
+
+				for (int t = 0; t < recorders.length; t++) {
+					Recorder recorder = recorders[t] = new Recorder();
+					List<FakeMember> owned = owned(guilds, t);
+					SplittableRandom random = new SplittableRandom(config.seed() + t);
+					int events = config.events() / recorders.length;
+					int thread = t;
+
+					Thread replay = new Thread(() -> {
+						try {
+							start.await();
+							for (int i = 0; i < events; i++) {
+								long scheduled = schedule(epoch.get(), i, thread);
+								replayer.replay(owned, random, recorder, scheduled);
+							}
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						} catch (RuntimeException e) {
+							logger.error("Replay thread {} failed", thread, e);
+							errors.incrementAndGet();
+						}
+					}, "Replay-" + t);
+					replay.start();
+					threads.add(replay);
+				}
+
+				long replayStart = System.nanoTime();
+				epoch.set(replayStart);
+				start.countDown();
+				for (Thread thread : threads)
+					thread.join();
+				long replayTime = System.nanoTime() - replayStart;
+				sampler.stop();
+
+				Recorder merged = Recorder.merge(recorders);
+				return new Report(config, scans.latencies(EventType.SCAN), scanTime, scanned, merged, replayTime,
+						sampler, errors.get(), mismatchedRestores.sum(), verify(database, guilds),
+						database.getBatchSizeController().getBatchSize(), filter.getFalsePositiveCount());
+			} finally {
+				sampler.stop();
+				listener.close();
+			}
+		}
+	}
+
+	/**
+	 * Create the guilds and give every member a random set of roles.
+	 */
+	private List<FakeGuild> populate(FakeDiscord discord) {
+		Random random = new Random(config.seed());
+		List<FakeGuild> guilds = new ArrayList<>();
+
+		for (int g = 0; g < config.guilds(); g++) {
+			FakeGuild guild = discord.guild("guild-" + g, config.roles());
+			List<Role> assignable = guild.assignable();
+
+			for (int m = 0; m < config.members(); m++) {
+				FakeMember member = guild.add(1_000_000_000L * (g + 1) + m);
+				for (int r = 0; r < config.rolesPerMember(); r++)
+					member.roles.add(assignable.get(random.nextInt(assignable.size())));
+			}
+			guilds.add(guild);
+		}
+		return guilds;
+	}
+
+	/**
+	 * Get the members replayed by a thread.
+	 */
+	private List<FakeMember> owned(List<FakeGuild> guilds, int thread) {
+		List<FakeMember> owned = new ArrayList<>();
+		for (FakeGuild guild : guilds)
+			for (FakeMember member : guild.members.values())
+				if (member != guild.self && Math.floorMod(member.id, config.threads()) == thread)
+					owned.add(member);
+		return owned;
+	}
+
+	/**
+	 * Wait for the start time of an event on the schedule of a thread.
+	 *
+	 * @param epoch  - start of the replay
+	 * @param event  - index of the event within the thread
+	 * @param thread - index of the thread
+	 *
+	 * @return The time the event was scheduled to start, or the current time
+	 *         without a {@link Config#rate() rate}
+	 */
+	private long schedule(long epoch, int event, int thread) {
+		if (config.rate() <= 0)
+			return System.nanoTime();
+
+		// Threads take turns so that events are spread evenly over time
+		long scheduled = epoch + (long) ((event * (double) config.threads() + thread) * 1e9 / config.rate());
+		for (long wait; (wait = scheduled - System.nanoTime()) > 0;)
+			LockSupport.parkNanos(wait);
+		return scheduled;
+	}
+
+	/**
+	 * Replays random events shared by all replay threads.
+	 */
+	private final class Replayer {
+		private final FakeDiscord discord;
+		private final GuildListener listener;
+		private final LongAdder mismatchedRestores;
+
+		/**
+		 * Held for reading while replaying events of a member and for writing while
+		 * the bot leaves and rejoins the guild
+		 */
+		private final Map<FakeGuild, ReadWriteLock> gateways = new IdentityHashMap<>();
+
+		Replayer(FakeDiscord discord, GuildListener listener, List<FakeGuild> guilds,
+				LongAdder mismatchedRestores) {
+			this.discord = discord;
+			this.listener = listener;
+			this.mismatchedRestores = mismatchedRestores;
+			for (FakeGuild guild : guilds)
+				gateways.put(guild, new ReentrantReadWriteLock());
+		}
+
+		/**
+		 * Replay a single random event for one of the owned members.
+		 *
+		 * @param owned     - members owned by the thread
+		 * @param random    - random source of the thread
+		 * @param recorder  - recorder of the thread
+		 * @param scheduled - time the event was scheduled to start
+		 */
+		void replay(List<FakeMember> owned, SplittableRandom random, Recorder recorder, long scheduled) {
+			int index = random.nextInt(owned.size());
+			FakeMember member = owned.get(index);
+			EventType type = config.mix().pick(random);
+
+			if (type == EventType.GUILD_LEAVE) {
+				Lock gateway = gateways.get(member.guild).writeLock();
+				gateway.lock();
+				try {
+					// The bot leaves and is invited back. The guild is purged and scanned again
+					GenericEvent leave = discord.guildLeave(member.guild);
+					recorder.record(EventType.GUILD_LEAVE, scheduled, () -> listener.onEvent(leave));
+
+					GenericEvent join = discord.guildJoin(member.guild);
+					recorder.record(EventType.GUILD_JOIN, () -> listener.onEvent(join));
+				} finally {
+					gateway.unlock();
+				}
+				return;
+			}
+
+			Lock gateway = gateways.get(member.guild).readLock();
+			gateway.lock();
+			try {
+				switch (type) {
+					case ROLE_ADD, ROLE_REMOVE -> changeRole(member, type, random, recorder, scheduled);
+					default -> owned.set(index, rejoin(member, recorder, scheduled));
+				}
+			} finally {
+				gateway.unlock();
+			}
+		}
+
+		/**
+		 * Give a random role to a member, or take one of their roles away. A member
+		 * that already holds the picked role loses a role instead.
+		 */
+		private void changeRole(FakeMember member, EventType type, SplittableRandom random, Recorder recorder,
+				long scheduled) {
+			if (type == EventType.ROLE_ADD) {
+				List<Role> assignable = member.guild.assignable();
+				Role role = assignable.get(random.nextInt(assignable.size()));
+				if (!member.roles.contains(role)) {
+					GenericEvent event = discord.addRoles(member, List.of(role));
+					recorder.record(EventType.ROLE_ADD, scheduled, () -> listener.onEvent(event));
+					return;
+				}
+			}
+
+			List<Role> held = new ArrayList<>(member.roles);
+			if (!held.isEmpty()) {
+				Role role = held.get(random.nextInt(held.size()));
+				GenericEvent event = discord.removeRoles(member, List.of(role));
+				recorder.record(EventType.ROLE_REMOVE, scheduled, () -> listener.onEvent(event));
+			}
+		}
+
+		/**
+		 * Member leaves and joins again. Their roles must be given back.
+		 *
+		 * @return The member after rejoining
+		 */
+		private FakeMember rejoin(FakeMember member, Recorder recorder, long scheduled) {
+			long[] before = member.storedRoles();
+			GenericEvent leave = discord.leave(member);
+			recorder.record(EventType.LEAVE, scheduled, () -> listener.onEvent(leave));
+
+			GenericEvent join = discord.join(member.guild, member.id);
+			recorder.record(EventType.JOIN, () -> listener.onEvent(join));
+
+			FakeMember rejoined = member.guild.members.get(member.id);
+			if (!Arrays.equals(before, rejoined.storedRoles()))
+				mismatchedRestores.increment();
+			return rejoined;
+		}
+	}
+
+	/**
+	 * Count the members whose stored roles differ from the model.
+	 */
+	private static long verify(RoleStorageDatabase database, List<FakeGuild> guilds) {
+		long mismatches = 0;
+
+		for (FakeGuild guild : guilds) {
+			Map<Long, Set<Long>> stored = new HashMap<>();
+			database.streamGuildRoles(guild.guild,
+					(memberID, roleID) -> stored.computeIfAbsent(memberID, id -> new HashSet<>()).add(roleID));
+
+			for (FakeMember member : guild.members.values()) {
+				Set<Long> expected = new HashSet<>();
+				for (long roleID : member.storedRoles())
+					expected.add(roleID);
+
+				if (!expected.equals(stored.getOrDefault(member.id, Set.of())))
+					mismatches++;
+				stored.remove(member.id);
+			}
+
+			// Rows of members that are not in the guild anymore
+			mismatches += stored.size();
+		}
+		return mismatches;
+	}
+
+	/**
+	 * Type of a replayed event.
+	 */
+	enum EventType {
+		SCAN, ROLE_ADD, ROLE_REMOVE, LEAVE, JOIN, GUILD_LEAVE, GUILD_JOIN
+	}
+
+	/**
+	 * Relative weights of the events started by a replay thread. A member leave
+	 * is always followed by the member joining again and a guild leave by the bot
+	 * joining the guild again.
+	 *
+	 * @param roleAdd     - weight of giving a role to a member
+	 * @param roleRemove  - weight of taking a role from a member
+	 * @param memberLeave - weight of a member leaving and rejoining
+	 * @param guildLeave  - weight of the bot leaving and rejoining a guild
+	 */
+	record Mix(int roleAdd, int roleRemove, int memberLeave, int guildLeave) {
+		static final Mix DEFAULT = new Mix(55, 30, 15, 0);
+
+		Mix {
+			if (roleAdd < 0 || roleRemove < 0 || memberLeave < 0 || guildLeave < 0)
+				throw new IllegalArgumentException("Weights must not be negative");
+			if (roleAdd + roleRemove + memberLeave + guildLeave <= 0)
+				throw new IllegalArgumentException("At least one weight must be positive");
+		}
+
+		/**
+		 * Pick the type of the next event.
+		 *
+		 * @param random - random source of the thread
+		 *
+		 * @return One of {@link EventType#ROLE_ADD}, {@link EventType#ROLE_REMOVE},
+		 *         {@link EventType#LEAVE} or {@link EventType#GUILD_LEAVE}
+		 */
+		EventType pick(SplittableRandom random) {
+			int roll = random.nextInt(roleAdd + roleRemove + memberLeave + guildLeave);
+			if ((roll -= roleAdd) < 0)
+				return EventType.ROLE_ADD;
+			if ((roll -= roleRemove) < 0)
+				return EventType.ROLE_REMOVE;
+			return roll < memberLeave ? EventType.LEAVE : EventType.GUILD_LEAVE;
+		}
+	}
+
+	/**
+	 * Settings of a replay.
+	 *
+	 * @param mode           - storage layout to use
+	 * @param guilds         - number of guilds
+	 * @param members        - number of members per guild
+	 * @param roles          - number of assignable roles per guild
+	 * @param rolesPerMember - number of roles given to each member before the
+	 *                       scan
+	 * @param events         - number of events replayed after the scan
+	 * @param threads        - number of replay threads
+	 * @param rate           - target number of events started per second by all
+	 *                       threads together, or {@code 0} to replay as fast as
+	 *                       possible
+	 * @param mix            - weights of the replayed events
+	 * @param seed           - seed of the random event stream
+	 */
+	record Config(StorageMode mode, int guilds, int members, int roles, int rolesPerMember, int events, int threads,
+			int rate, Mix mix, long seed) {
+		static final Config DEFAULT = new Config(StorageMode.ROWS, 4, 25_000, 50, 5, 100_000, 4, 0, Mix.DEFAULT, 42);
+
+		Config withMode(StorageMode mode) {
+			return new Config(mode, guilds, members, roles, rolesPerMember, events, threads, rate, mix, seed);
+		}
+
+		Config withEvents(int events) {
+			return new Config(mode, guilds, members, roles, rolesPerMember, events, threads, rate, mix, seed);
+		}
+
+		Config withRate(int rate) {
+			return new Config(mode, guilds, members, roles, rolesPerMember, events, threads, rate, mix, seed);
+		}
+
+		Config withMix(Mix mix) {
+			return new Config(mode, guilds, members, roles, rolesPerMember, events, threads, rate, mix, seed);
+		}
+	}
+
+	/**
+	 * Latencies of each event type recorded by a single thread.
+	 */
+	static final class Recorder {
+		private final Map<EventType, long[]> samples = new EnumMap<>(EventType.class);
+		private final Map<EventType, Integer> counts = new EnumMap<>(EventType.class);
+
+		void record(EventType type, Runnable action) {
+			record(type, System.nanoTime(), action);
+		}
+
+		/**
+		 * Run an action and record its latency from the time it was scheduled to
+		 * start.
+		 */
+		void record(EventType type, long start, Runnable action) {
+			action.run();
+			long latency = System.nanoTime() - start;
+
+			int count = counts.getOrDefault(type, 0);
+			long[] values = samples.computeIfAbsent(type, t -> new long[1024]);
+			if (count == values.length)
+				samples.put(type, values = Arrays.copyOf(values, count * 2));
+			values[count] = latency;
+			counts.put(type, count + 1);
+		}
+
+		long[] latencies(EventType type) {
+			long[] values = Arrays.copyOf(samples.getOrDefault(type, new long[0]), counts.getOrDefault(type, 0));
+			Arrays.sort(values);
+			return values;
+		}
+
+		static Recorder merge(Recorder[] recorders) {
+			Recorder merged = new Recorder();
+			for (EventType type : EventType.values()) {
+				long[] all = Arrays.stream(recorders).map(r -> r.latencies(type)).flatMapToLong(Arrays::stream)
+						.toArray();
+				merged.samples.put(type, all);
+				merged.counts.put(type, all.length);
+			}
+			return merged;
+		}
+	}
+
+	/**
+	 * Background thread sampling the queue depth of all batch workers and the
+	 * bytes allocated by every thread of the process.
+	 */
+	static final class Sampler implements Runnable {
+		private final RoleStorageDatabase database;
+		private final AtomicBoolean running = new AtomicBoolean();
+		private final Thread thread = new Thread(this, "Replay-Sampler");
+		private final com.sun.management.ThreadMXBean threads;
+
+		/**
+		 * Allocated bytes of each thread when first and last seen
+		 */
+		private final Map<Long, long[]> allocations = new HashMap<>();
+
+		private final long gcCount;
+		private final long gcTime;
+		private long gcCountDelta;
+		private long gcTimeDelta;
+
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+		private long samples;
+		private long depthSum;
+		private int maxDepth;
+		private long heapSum;
+		private long maxHeap;
+
+		Sampler(RoleStorageDatabase database) {
+			this.database = database;
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			this.threads = bean instanceof com.sun.management.ThreadMXBean sun
+					&& sun.isThreadAllocatedMemorySupported() ? sun : null;
+			if (threads != null)
+				threads.setThreadAllocatedMemoryEnabled(true);
+
+			this.gcCount = gcCount();
+			this.gcTime = gcTime();
+			sampleAllocations(true);
+		}
+
+		void start() {
+			running.set(true);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void stop() throws InterruptedException {
+			if (running.getAndSet(false)) {
+				thread.join();
+				sampleAllocations(false);
+				gcCountDelta = gcCount() - gcCount;
+				gcTimeDelta = gcTime() - gcTime;
+			}
+		}
+
+		@Override
+		public void run() {
+			while (running.get()) {
+				int depth = database.getPendingWrites();
+				samples++;
+				depthSum += depth;
+				maxDepth = Math.max(maxDepth, depth);
+				long heap = memory.getHeapMemoryUsage().getUsed();
+				heapSum += heap;
+				maxHeap = Math.max(maxHeap, heap);
+				sampleAllocations(false);
+
+				try {
+					Thread.sleep(SAMPLE_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Record the allocated bytes of all live threads. Threads that finish
+		 * between two samples lose at most one interval of allocations.
+		 */
+		private synchronized void sampleAllocations(boolean baseline) {
+			if (threads == null)
+				return;
+
+			long[] ids = threads.getAllThreadIds();
+			long[] bytes = threads.getThreadAllocatedBytes(ids);
+			for (int i = 0; i < ids.length; i++) {
+				if (bytes[i] < 0)
+					continue;
+				long[] seen = allocations.computeIfAbsent(ids[i], id -> new long[] { 0, 0 });
+				if (baseline)
+					seen[0] = bytes[i];
+				seen[1] = bytes[i];
+			}
+		}
+
+		synchronized long allocatedBytes() {
+			return threads == null ? -1 : allocations.values().stream().mapToLong(seen -> seen[1] - seen[0]).sum();
+		}
+
+		double meanDepth() {
+			return samples == 0 ? 0 : depthSum / (double) samples;
+		}
+
+		long meanHeap() {
+			return samples == 0 ? 0 : heapSum / samples;
+		}
+
+		private static long gcCount() {
+			return ManagementFactory.getGarbageCollectorMXBeans().stream()
+					.mapToLong(GarbageCollectorMXBean::getCollectionCount).filter(c -> c > 0).sum();
+		}
+
+		private static long gcTime() {
+			return ManagementFactory.getGarbageCollectorMXBeans().stream()
+					.mapToLong(GarbageCollectorMXBean::getCollectionTime).filter(c -> c > 0).sum();
+		}
+	}
+
+	/**
+	 * Result of a replay.
+	 */
+	record Report(Config config, long[] scanLatencies, long scanTime, long scannedMembers, Recorder events,
+			long replayTime, Sampler sampler, long errors, long mismatchedRestores, long mismatchedMembers,
+			int finalBatchSize, long filterFalsePositives) {
+
+		/**
+		 * Get the number of replayed events, excluding scans.
+		 */
+		long eventCount() {
+			long count = 0;
+			for (EventType type : EventType.values())
+				if (type != EventType.SCAN)
+					count += events.latencies(type).length;
+			return count;
+		}
+
+		/**
+		 * Get the number of events started by all replay threads. A member or guild
+		 * leave starts two recorded events, the leave and the following join.
+		 */
+		long startedEvents() {
+			return config.events() / config.threads() * (long) config.threads();
+		}
+
+		/**
+		 * Get the number of events started per second.
+		 */
+		double throughput() {
+			return startedEvents() / (replayTime / 1e9);
+		}
+
+		String format() {
+			long totalEvents = eventCount();
+			long allocated = sampler.allocatedBytes();
+			Mix mix = config.mix();
+			StringBuilder out = new StringBuilder();
+
+			out.append("Event replay: %s layout, %d guilds x %d members, %d roles (%d per member), %d threads%n"
+					.formatted(config.mode(), config.guilds(), config.members(), config.roles(),
+							config.rolesPerMember(), config.threads()));
+			out.append("Mix: %d role add, %d role remove, %d member leave, %d guild leave. Target rate: %s%n"
+					.formatted(mix.roleAdd(), mix.roleRemove(), mix.memberLeave(), mix.guildLeave(),
+							config.rate() > 0 ? config.rate() + " events/s (open loop)" : "none (closed loop)"));
+			out.append("Scan:   %d members stored in %.1f ms (%.0f members/s)%n".formatted(scannedMembers,
+					scanTime / 1e6, scannedMembers / (scanTime / 1e9)));
+			out.append("Replay: %d events started, %d recorded in %.1f ms (%.0f started/s)%n".formatted(
+					startedEvents(), totalEvents, replayTime / 1e6, throughput()));
+			out.append("%-12s %8s %10s %10s %10s %10s%n".formatted("event", "count", "p50 (us)", "p99 (us)",
+					"p99.9 (us)", "max (us)"));
+			format(out, EventType.SCAN, scanLatencies);
+			for (EventType type : EventType.values())
+				if (type != EventType.SCAN)
+					format(out, type, events.latencies(type));
+			out.append("Queue depth: max %d, mean %.1f over %d samples. Final batch size %d%n"
+					.formatted(sampler.maxDepth, sampler.meanDepth(), sampler.samples, finalBatchSize));
+			out.append("Heap used: max %s, mean %s%n".formatted(bytes(sampler.maxHeap), bytes(sampler.meanHeap())));
+			out.append("Heap churn: %s allocated (%s per replayed event, scans included), %d GCs taking %d ms%n"
+					.formatted(bytes(allocated), bytes(totalEvents == 0 ? 0 : allocated / totalEvents),
+							sampler.gcCountDelta, sampler.gcTimeDelta));
+			out.append("Checks: %d errors, %d mismatched restores, %d mismatched members, %d filter false positives%n"
+					.formatted(errors, mismatchedRestores, mismatchedMembers, filterFalsePositives));
+			return out.toString();
+		}
+
+		private static void format(StringBuilder out, EventType type, long[] latencies) {
+			if (latencies.length == 0)
+				return;
+			out.append("%-12s %8d %10.1f %10.1f %10.1f %10.1f%n".formatted(type, latencies.length,
+					percentile(latencies, 0.5) / 1e3, percentile(latencies, 0.99) / 1e3,
+					percentile(latencies, 0.999) / 1e3, latencies[latencies.length - 1] / 1e3));
+		}
+
+		private static long percentile(long[] sorted, double p) {
+			return sorted[(int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(p * sorted.length) - 1))];
+		}
+
+		private static String bytes(long bytes) {
+			if (bytes < 0)
+				return "n/a";
+			return bytes < 1 << 20 ? "%.1f KiB".formatted(bytes / 1024D) : "%.1f MiB".formatted(bytes / 1048576D);
+		}
+	}
+
+}
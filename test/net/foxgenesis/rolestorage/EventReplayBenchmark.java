@@ -0,0 +1,42 @@
+package net.foxgenesis.rolestorage;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.TestReporter;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import net.foxgenesis.rolestorage.EventReplay.Config;
+import net.foxgenesis.rolestorage.EventReplay.Mix;
+
+/**
+ * Full size {@link EventReplay} for each storage layout.
+ * <p>
+ * Run with {@code mvn test -Pbench}.
+ * </p>
+ *
+ * @author Ashley
+ *
+ */
+@Tag("benchmark")
+class EventReplayBenchmark {
+
+	/**
+	 * Target rate of the open loop replay in events per second
+	 */
+	private static final int RATE = 2000;
+
+	@ParameterizedTest
+	@EnumSource(StorageMode.class)
+	void replay(StorageMode mode, TestReporter reporter) throws Exception {
+		reporter.publishEntry("Closed loop", new EventReplay(Config.DEFAULT.withMode(mode)).run().format());
+	}
+
+	@ParameterizedTest
+	@EnumSource(StorageMode.class)
+	void replayAtRate(StorageMode mode, TestReporter reporter) throws Exception {
+		// Guild leaves purge and scan a whole guild while member events keep arriving
+		Config config = Config.DEFAULT.withMode(mode).withRate(RATE).withEvents(RATE * 20)
+				.withMix(new Mix(5500, 3000, 1499, 1));
+		reporter.publishEntry("Open loop", new EventReplay(config).run().format());
+	}
+}
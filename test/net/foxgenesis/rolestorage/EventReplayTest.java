@@ -0,0 +1,77 @@
+package net.foxgenesis.rolestorage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import net.foxgenesis.rolestorage.EventReplay.Config;
+import net.foxgenesis.rolestorage.EventReplay.EventType;
+import net.foxgenesis.rolestorage.EventReplay.Mix;
+import net.foxgenesis.rolestorage.EventReplay.Report;
+
+/**
+ * Small {@link EventReplay} checking that the stored roles match the replayed
+ * events and that every departed member gets their roles back.
+ *
+ * @author Ashley
+ *
+ */
+@Timeout(120)
+class EventReplayTest {
+
+	@ParameterizedTest
+	@EnumSource(StorageMode.class)
+	void storedRolesMatchReplayedEvents(StorageMode mode) throws Exception {
+		Report report = new EventReplay(new Config(mode, 2, 300, 20, 3, 3000, 3, 0, new Mix(50, 30, 18, 2), 7))
+				.run();
+
+		assertEquals(0, report.errors());
+		assertEquals(0, report.mismatchedMembers());
+		assertEquals(0, report.mismatchedRestores());
+		assertEquals(600, report.scannedMembers());
+		assertEquals(2, report.scanLatencies().length);
+		for (EventType type : EventType.values())
+			if (type != EventType.SCAN)
+				assertTrue(report.events().latencies(type).length > 0, type.name());
+		assertEquals(report.events().latencies(EventType.GUILD_LEAVE).length,
+				report.events().latencies(EventType.GUILD_JOIN).length);
+	}
+
+	@Test
+	void openLoopKeepsToTheTargetRate() throws Exception {
+		int events = 600;
+		int rate = 2000;
+		Report report = new EventReplay(new Config(StorageMode.ROWS, 1, 200, 10, 2, events, 3, rate, Mix.DEFAULT, 7))
+				.run();
+
+		assertEquals(0, report.errors());
+		assertEquals(0, report.mismatchedMembers());
+
+		// The last event can not start before its slot on the schedule
+		assertTrue(report.replayTime() >= (events - 1) * 1_000_000_000L / rate, () -> report.format());
+		assertTrue(report.throughput() <= rate * 1.05, () -> report.format());
+	}
+
+	@Test
+	void mixPicksEventsByWeight() {
+		Mix mix = new Mix(2, 1, 1, 0);
+		SplittableRandom random = new SplittableRandom(1);
+		int[] counts = new int[EventType.values().length];
+		for (int i = 0; i < 40_000; i++)
+			counts[mix.pick(random).ordinal()]++;
+
+		assertEquals(20_000, counts[EventType.ROLE_ADD.ordinal()], 1000);
+		assertEquals(10_000, counts[EventType.ROLE_REMOVE.ordinal()], 1000);
+		assertEquals(10_000, counts[EventType.LEAVE.ordinal()], 1000);
+		assertEquals(0, counts[EventType.GUILD_LEAVE.ordinal()]);
+		assertThrows(IllegalArgumentException.class, () -> new Mix(0, 0, 0, 0));
+		assertThrows(IllegalArgumentException.class, () -> new Mix(1, -1, 0, 0));
+	}
+}
@@ -0,0 +1,359 @@
+package net.foxgenesis.rolestorage;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.events.guild.GuildJoinEvent;
+import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRemoveEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleAddEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleRemoveEvent;
+import net.dv8tion.jda.api.events.role.RoleCreateEvent;
+import net.dv8tion.jda.api.events.role.RoleDeleteEvent;
+import net.dv8tion.jda.api.events.role.update.RoleUpdatePermissionsEvent;
+import net.dv8tion.jda.api.events.role.update.RoleUpdatePositionEvent;
+import net.dv8tion.jda.api.requests.restaction.AuditableRestAction;
+import net.dv8tion.jda.api.utils.cache.MemberCacheView;
+
+/**
+ * In-memory model of guilds, members and roles exposed through proxies of the
+ * JDA entity interfaces. Only the methods used by the plugin are implemented,
+ * everything else throws {@link UnsupportedOperationException}. Events are
+ * created after the model has been updated, the same way JDA does.
+ *
+ * @author Ashley
+ *
+ */
+final class FakeDiscord {
+
+	private final AtomicLong ids = new AtomicLong(1_000_000);
+	private final AtomicLong responses = new AtomicLong();
+
+	/**
+	 * Number of {@code modifyMemberRoles} calls that were queued
+	 */
+	final LongAdder roleUpdates = new LongAdder();
+
+	final JDA jda = proxy(JDA.class, "JDA", (proxy, method, args) -> unsupported(method.getName()));
+
+	/**
+	 * Create a new guild with a number of assignable roles, a managed role, the
+	 * public role and the bot as its only member.
+	 *
+	 * @param name  - name of the guild
+	 * @param roles - number of assignable roles
+	 *
+	 * @return The new {@link FakeGuild}
+	 */
+	FakeGuild guild(String name, int roles) {
+		return new FakeGuild(name, roles);
+	}
+
+	/**
+	 * Create the event sent when the bot joins a guild.
+	 */
+	GenericEvent guildJoin(FakeGuild guild) {
+		return new GuildJoinEvent(jda, responses.incrementAndGet(), guild.guild);
+	}
+
+	/**
+	 * Create the event sent when the bot leaves a guild. The members of the guild
+	 * are kept, the same way they stay in the guild while the bot is away.
+	 */
+	GenericEvent guildLeave(FakeGuild guild) {
+		return new GuildLeaveEvent(jda, responses.incrementAndGet(), guild.guild);
+	}
+
+	/**
+	 * Give roles to a member and create the matching event.
+	 */
+	GenericEvent addRoles(FakeMember member, List<Role> roles) {
+		member.roles.addAll(roles);
+		return new GuildMemberRoleAddEvent(jda, responses.incrementAndGet(), member.member, roles);
+	}
+
+	/**
+	 * Take roles from a member and create the matching event.
+	 */
+	GenericEvent removeRoles(FakeMember member, List<Role> roles) {
+		member.roles.removeAll(roles);
+		return new GuildMemberRoleRemoveEvent(jda, responses.incrementAndGet(), member.member, roles);
+	}
+
+	/**
+	 * Remove a member from its guild and create the matching event.
+	 */
+	GenericEvent leave(FakeMember member) {
+		member.guild.members.remove(member.id);
+		return new GuildMemberRemoveEvent(jda, responses.incrementAndGet(), member.guild.guild, member.user,
+				member.member);
+	}
+
+	/**
+	 * Add a new member without roles to a guild and create the matching event.
+	 */
+	GenericEvent join(FakeGuild guild, long memberID) {
+		return new GuildMemberJoinEvent(jda, responses.incrementAndGet(), guild.add(memberID).member);
+	}
+
+	/**
+	 * Add a new assignable role below the role of the bot and create the matching
+	 * event.
+	 */
+	RoleCreateEvent createRole(FakeGuild guild) {
+		return new RoleCreateEvent(jda, responses.incrementAndGet(), guild.addRole(false, false));
+	}
+
+	/**
+	 * Delete a role, taking it from every member, and create the matching event.
+	 */
+	RoleDeleteEvent deleteRole(FakeGuild guild, Role role) {
+		guild.roles.remove(role);
+		guild.rolesByID.remove(role.getIdLong());
+		guild.members.values().forEach(member -> member.roles.remove(role));
+		return new RoleDeleteEvent(jda, responses.incrementAndGet(), role);
+	}
+
+	/**
+	 * Move a role to a new position and create the matching event.
+	 */
+	RoleUpdatePositionEvent moveRole(FakeGuild guild, Role role, int position) {
+		int old = guild.positions.put(role.getIdLong(), position);
+		return new RoleUpdatePositionEvent(jda, responses.incrementAndGet(), role, old, old);
+	}
+
+	/**
+	 * Replace the permissions of a role and create the matching event.
+	 */
+	RoleUpdatePermissionsEvent setPermissions(FakeGuild guild, Role role, Permission... permissions) {
+		long old = guild.permissions.put(role.getIdLong(), Permission.getRaw(permissions));
+		return new RoleUpdatePermissionsEvent(jda, responses.incrementAndGet(), role, old);
+	}
+
+	/**
+	 * Guild of the model. Roles are ordered by position, except for the managed
+	 * role of the bot which is above every other role and allows it to manage
+	 * roles.
+	 */
+	final class FakeGuild {
+		final long id = ids.incrementAndGet();
+		final String name;
+		final Guild guild;
+		final List<Role> roles = new ArrayList<>();
+		final Map<Long, FakeMember> members = new ConcurrentHashMap<>();
+		final FakeMember self;
+
+		/**
+		 * Number of times the member cache was read, once per scan
+		 */
+		final LongAdder memberCacheReads = new LongAdder();
+
+		private final Map<Long, Role> rolesByID = new ConcurrentHashMap<>();
+		private final Map<Long, Integer> positions = new ConcurrentHashMap<>();
+		private final Map<Long, Long> permissions = new ConcurrentHashMap<>();
+
+		private FakeGuild(String name, int assignable) {
+			this.name = name;
+			this.guild = proxy(Guild.class, name, this::invoke);
+
+			addRole(false, true);
+			addRole(true, false);
+			for (int i = 0; i < assignable; i++)
+				addRole(false, false);
+
+			self = add(ids.incrementAndGet());
+			self.roles.add(roles.get(1));
+		}
+
+		/**
+		 * Get the assignable roles of this guild.
+		 */
+		List<Role> assignable() {
+			return roles.subList(2, roles.size());
+		}
+
+		/**
+		 * Add a member without roles.
+		 */
+		FakeMember add(long memberID) {
+			FakeMember member = new FakeMember(this, memberID);
+			members.put(memberID, member);
+			return member;
+		}
+
+		private Role addRole(boolean managed, boolean everyone) {
+			long roleID = everyone ? id : ids.incrementAndGet();
+			Role role = proxy(Role.class, name + "/role:" + roleID, (proxy, method, args) -> switch (method.getName()) {
+				case "getIdLong" -> roleID;
+				case "getId" -> Long.toUnsignedString(roleID);
+				case "getGuild" -> guild;
+				case "isManaged" -> managed;
+				case "isPublicRole" -> everyone;
+				case "getPosition", "getPositionRaw" -> positions.get(roleID);
+				case "getPermissions" -> Permission.getPermissions(permissions.get(roleID));
+				case "getPermissionsRaw" -> permissions.get(roleID);
+				default -> unsupported(method.getName());
+			});
+			positions.put(roleID, managed ? 1_000_000 : roles.size());
+			permissions.put(roleID, managed ? Permission.MANAGE_ROLES.getRawValue() : 0L);
+			roles.add(role);
+			rolesByID.put(roleID, role);
+			return role;
+		}
+
+		/**
+		 * Check if the roles of a member grant all permissions.
+		 */
+		private boolean hasPermission(FakeMember member, Collection<Permission> required) {
+			long granted = permissions.get(id);
+			for (Role role : member.roles)
+				granted |= permissions.get(role.getIdLong());
+			return (granted & Permission.getRaw(required)) == Permission.getRaw(required);
+		}
+
+		/**
+		 * Check if the highest role of a member is above a role.
+		 */
+		private boolean canInteract(FakeMember member, Role role) {
+			return member.roles.stream().mapToInt(held -> positions.get(held.getIdLong())).anyMatch(
+					position -> position > positions.get(role.getIdLong()));
+		}
+
+		private Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args) {
+			return switch (method.getName()) {
+				case "getIdLong" -> id;
+				case "getId" -> Long.toUnsignedString(id);
+				case "getName" -> name;
+				case "getRoles" -> List.copyOf(roles);
+				case "getRoleById" -> rolesByID.get(id(args[0]));
+				case "getSelfMember" -> self.member;
+				case "getMemberById" -> memberOrNull(id(args[0]));
+				case "getMemberCache" -> memberCache();
+				case "modifyMemberRoles" -> modifyMemberRoles((Member) args[0], args[1]);
+				default -> unsupported(method.getName());
+			};
+		}
+
+		private static long id(Object id) {
+			return id instanceof String s ? Long.parseUnsignedLong(s) : (long) id;
+		}
+
+		private Member memberOrNull(long memberID) {
+			FakeMember member = members.get(memberID);
+			return member == null ? null : member.member;
+		}
+
+		private MemberCacheView memberCache() {
+			memberCacheReads.increment();
+			List<Member> snapshot = members.values().stream().map(member -> member.member).toList();
+			return proxy(MemberCacheView.class, name + "/members", (proxy, method, args) -> switch (method.getName()) {
+				case "asList" -> snapshot;
+				case "size" -> (long) snapshot.size();
+				case "isEmpty" -> snapshot.isEmpty();
+				default -> unsupported(method.getName());
+			});
+		}
+
+		private AuditableRestAction<?> modifyMemberRoles(Member member, Object roles) {
+			@SuppressWarnings("unchecked")
+			List<Role> updated = List.copyOf((Collection<Role>) roles);
+			return proxy(AuditableRestAction.class, "modifyMemberRoles", (proxy, method, args) -> {
+				if (!method.getName().equals("queue"))
+					return unsupported(method.getName());
+
+				// Roles given by the bot replace the current roles of the member
+				FakeMember target = members.get(member.getIdLong());
+				if (target != null) {
+					target.roles.clear();
+					target.roles.addAll(updated);
+				}
+				roleUpdates.increment();
+				return null;
+			});
+		}
+	}
+
+	/**
+	 * Member of a guild in the model.
+	 */
+	final class FakeMember {
+		final long id;
+		final FakeGuild guild;
+		final Set<Role> roles = ConcurrentHashMap.newKeySet();
+		final Member member;
+		final User user;
+
+		private FakeMember(FakeGuild guild, long id) {
+			this.guild = guild;
+			this.id = id;
+			this.user = proxy(User.class, "user:" + id, (proxy, method, args) -> switch (method.getName()) {
+				case "getIdLong" -> id;
+				case "getId" -> Long.toUnsignedString(id);
+				default -> unsupported(method.getName());
+			});
+			this.member = proxy(Member.class, guild.name + "/member:" + id,
+					(proxy, method, args) -> switch (method.getName()) {
+						case "getIdLong" -> id;
+						case "getId" -> Long.toUnsignedString(id);
+						case "getGuild" -> guild.guild;
+						case "getUser" -> user;
+						case "getRoles" -> List.copyOf(roles);
+						// Only the permissions of the bot are modelled
+						case "hasPermission" -> this != guild.self || hasPermission(args);
+						case "canInteract" -> this != guild.self || !(args[0] instanceof Role role)
+								|| guild.canInteract(this, role);
+						default -> unsupported(method.getName());
+					});
+		}
+
+		@SuppressWarnings("unchecked")
+		private boolean hasPermission(Object[] args) {
+			Object required = args[args.length - 1];
+			return guild.hasPermission(this, required instanceof Permission[] array ? List.of(array)
+					: (Collection<Permission>) required);
+		}
+
+		/**
+		 * Get the IDs of the roles held by this member that are stored.
+		 */
+		long[] storedRoles() {
+			return roles.stream().filter(role -> !role.isManaged() && !role.isPublicRole()).mapToLong(Role::getIdLong)
+					.sorted().toArray();
+		}
+	}
+
+	/**
+	 * Create a proxy implementing {@code type}. {@code equals}, {@code hashCode}
+	 * and {@code toString} are answered by the proxy itself.
+	 */
+	private static <T> T proxy(Class<T> type, String name, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				(proxy, method, args) -> switch (method.getName()) {
+					case "equals" -> args.length == 1 ? proxy == args[0] : handler.invoke(proxy, method, args);
+					case "hashCode" -> args == null ? System.identityHashCode(proxy)
+							: handler.invoke(proxy, method, args);
+					case "toString" -> args == null ? name : handler.invoke(proxy, method, args);
+					default -> handler.invoke(proxy, method, args);
+				}));
+	}
+
+	private static Object unsupported(String method) {
+		throw new UnsupportedOperationException(method);
+	}
+}
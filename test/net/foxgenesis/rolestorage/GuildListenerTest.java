@@ -0,0 +1,170 @@
+package net.foxgenesis.rolestorage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.Test;
+
+import net.foxgenesis.rolestorage.AssignableRoleCache.GuildRoles;
+import net.foxgenesis.rolestorage.BatchWorker.BatchData;
+import net.foxgenesis.rolestorage.FakeDiscord.FakeGuild;
+import net.foxgenesis.rolestorage.FakeDiscord.FakeMember;
+
+import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.events.role.RoleCreateEvent;
+
+/**
+ * Tests of {@link GuildListener} against a {@link FakeDiscord}.
+ *
+ * @author Ashley
+ *
+ */
+class GuildListenerTest {
+
+	@Test
+	void scanSpreadsPartitionsEvenlyOverLanes() throws Exception {
+		FakeGuild guild = new FakeDiscord().guild("guild", 1);
+		Role role = guild.assignable().get(0);
+		for (int member = 1; member <= 20_000; member++)
+			guild.add(member).roles.add(role);
+
+		// Halving gives eight partitions of about 2500 members that do not line up with PARTITION_SIZE
+		BatchWorker[] lanes = { idleLane(), idleLane(), idleLane() };
+		try (GuildListener listener = listener(2)) {
+			listener.scanMembers(guild.guild, guild.guild.getMemberCache().asList(), lanes, lease(guild));
+		}
+
+		// Two or three partitions per lane
+		int[] pending = Arrays.stream(lanes).mapToInt(BatchWorker::getPendingCount).sorted().toArray();
+		assertEquals(20_000, Arrays.stream(pending).sum());
+		assertTrue(pending[0] >= 2 * 2490 && pending[2] <= 3 * 2510, "rows per lane " + Arrays.toString(pending));
+	}
+
+	@Test
+	void roleEventsInvalidateAssignableRoles() throws Exception {
+		FakeDiscord discord = new FakeDiscord();
+		FakeGuild guild = discord.guild("guild", 2);
+		Role bot = guild.roles.get(1);
+
+		try (GuildListener listener = listener(g -> false, new RoleStorageDatabase(), 1)) {
+			roles(listener, guild);
+			RoleCreateEvent create = discord.createRole(guild);
+			Role created = create.getRole();
+			listener.onEvent(create);
+			assertTrue(roles(listener, guild).isAssignable(created.getIdLong()));
+
+			listener.onEvent(discord.moveRole(guild, created, 2_000_000));
+			assertTrue(roles(listener, guild).isStorable(created.getIdLong()));
+			assertFalse(roles(listener, guild).isAssignable(created.getIdLong()));
+
+			listener.onEvent(discord.setPermissions(guild, bot));
+			assertFalse(roles(listener, guild).hasAssignable());
+			listener.onEvent(discord.setPermissions(guild, bot, Permission.MANAGE_ROLES));
+			assertTrue(roles(listener, guild).hasAssignable());
+
+			listener.onEvent(discord.deleteRole(guild, created));
+			assertFalse(roles(listener, guild).isStorable(created.getIdLong()));
+		}
+	}
+
+	@Test
+	void roleChangesOfTheBotInvalidateAssignableRoles() throws Exception {
+		FakeDiscord discord = new FakeDiscord();
+		FakeGuild guild = discord.guild("guild", 2);
+		Role above = guild.assignable().get(1);
+		Role higher = discord.createRole(guild).getRole();
+		discord.moveRole(guild, above, 2_000_000);
+		discord.moveRole(guild, higher, 3_000_000);
+		FakeMember member = guild.add(1);
+
+		try (GuildListener listener = listener(g -> false, new RoleStorageDatabase(), 1)) {
+			GuildRoles roles = roles(listener, guild);
+			assertFalse(roles.isAssignable(above.getIdLong()));
+
+			// Roles of other members do not change what the bot can assign
+			listener.onEvent(discord.addRoles(member, List.of(higher)));
+			assertSame(roles, roles(listener, guild));
+
+			listener.onEvent(discord.addRoles(guild.self, List.of(higher)));
+			assertTrue(roles(listener, guild).isAssignable(above.getIdLong()));
+
+			listener.onEvent(discord.removeRoles(guild.self, List.of(higher)));
+			assertFalse(roles(listener, guild).isAssignable(above.getIdLong()));
+		}
+	}
+
+	@Test
+	void guildLeaveInvalidatesAssignableRoles() throws Exception {
+		FakeDiscord discord = new FakeDiscord();
+		FakeGuild guild = discord.guild("guild", 2);
+
+		try (EmbeddedDatabase embedded = EmbeddedDatabase.create();
+				GuildListener listener = listener(g -> true, embedded.open(WorkerSettings.DEFAULT,
+						new MembershipFilter(1000, 0.01, false), StorageMode.ROWS), 1)) {
+			roles(listener, guild);
+
+			// The bot does not receive role events while it is away
+			Role created = discord.createRole(guild).getRole();
+			listener.onEvent(discord.guildLeave(guild));
+			assertTrue(roles(listener, guild).isAssignable(created.getIdLong()));
+		}
+	}
+
+	/**
+	 * Get the cached role sets of a guild.
+	 */
+	static GuildRoles roles(GuildListener listener, FakeGuild guild) {
+		return listener.getAssignableRoles().get(guild.guild);
+	}
+
+	/**
+	 * Create a listener that stores roles of every guild without coordination.
+	 *
+	 * @param scanParallelism - number of threads scanning a guild
+	 */
+	static GuildListener listener(int scanParallelism) {
+		return listener(guild -> true, new RoleStorageDatabase(), scanParallelism);
+	}
+
+	/**
+	 * Create a listener without coordination.
+	 *
+	 * @param enabled         - whether role storage is enabled in a guild
+	 * @param database        - database to store roles in
+	 * @param scanParallelism - number of threads scanning a guild
+	 */
+	static GuildListener listener(Predicate<Guild> enabled, RoleStorageDatabase database, int scanParallelism) {
+		return new GuildListener(enabled, database, new DepartedMemberCache(0, 0, 0, TimeUnit.SECONDS),
+				new LeaseManager(database, "test", 60, false), scanParallelism, 1);
+	}
+
+	/**
+	 * Get a scan lease of a guild without coordination.
+	 */
+	static LeaseManager.Lease lease(FakeGuild guild) {
+		return new LeaseManager(new RoleStorageDatabase(), "test", 60, false).acquire(guild.id, LeaseManager.SCAN)
+				.orElseThrow();
+	}
+
+	/**
+	 * Create a worker that is never started, so that scanned roles stay queued.
+	 */
+	static BatchWorker idleLane() {
+		WorkerSettings settings = WorkerSettings.DEFAULT;
+		return new BatchWorker(new BatchData<>(() -> {
+			throw new SQLException("Idle lane has no database");
+		}, new ConcurrentLinkedQueue<>(), new ConcurrentLinkedQueue<>(), new RowRoleWriter("", ""), settings,
+				new BatchSizeController(settings), new MembershipFilter(1, 0.5, false)));
+	}
+}
@@ -0,0 +1,201 @@
+package net.foxgenesis.rolestorage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import net.foxgenesis.rolestorage.FakeDiscord.FakeGuild;
+import net.foxgenesis.rolestorage.LeaseManager.Lease;
+
+/**
+ * Tests of {@link LeaseManager} with several nodes sharing one
+ * {@link EmbeddedDatabase}. Leases are renewed by calling
+ * {@link LeaseManager#renewAll()} instead of a heartbeat, the clock of the
+ * nodes is moved by hand and the passing of time in the database is simulated
+ * by moving the expiry of leases into the past.
+ *
+ * @author Ashley
+ *
+ */
+@Timeout(60)
+class LeaseManagerTest {
+
+	private EmbeddedDatabase embedded;
+	private final List<LeaseManager> managers = new ArrayList<>();
+
+	/**
+	 * Clock of all nodes in nanoseconds
+	 */
+	private final AtomicLong clock = new AtomicLong();
+
+	@BeforeEach
+	void setUp() throws Exception {
+		embedded = EmbeddedDatabase.create();
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		managers.forEach(LeaseManager::close);
+		embedded.close();
+	}
+
+	@Test
+	void renewalsKeepLeaseUntilCompleted() throws Exception {
+		LeaseManager first = node("first", 60);
+		LeaseManager second = node("second", 60);
+
+		Lease lease = first.acquire(1, LeaseManager.SCAN).orElseThrow();
+		assertTrue(second.acquire(1, LeaseManager.SCAN).isEmpty());
+
+		// Past the lease duration, but renewed before another node looks at it
+		expireLeases();
+		first.renewAll();
+		assertTrue(lease.isHeld());
+		assertTrue(second.acquire(1, LeaseManager.SCAN).isEmpty());
+
+		// Completed leases are no longer renewed and expire
+		first.complete(lease);
+		first.renewAll();
+		expireLeases();
+		assertTrue(second.acquire(1, LeaseManager.SCAN).isPresent());
+	}
+
+	@Test
+	void leaseTakenByAnotherNodeIsLost() throws Exception {
+		LeaseManager first = node("first", 60);
+		Lease lease = first.acquire(1, LeaseManager.SCAN).orElseThrow();
+
+		embedded.execute("UPDATE `WatameBot`.`RoleStorageLease` SET Owner = 'second'");
+		first.renewAll();
+
+		assertFalse(lease.isHeld());
+	}
+
+	@Test
+	void failedRenewalsKeepLeaseUntilItWouldExpire() throws Exception {
+		LeaseManager first = node("first", 60);
+		Lease lease = first.acquire(1, LeaseManager.SCAN).orElseThrow();
+
+		// Every renewal fails from now on
+		embedded.execute("DROP TABLE `WatameBot`.`RoleStorageLease`");
+
+		clock.set(TimeUnit.SECONDS.toNanos(20));
+		first.renewAll();
+		clock.set(TimeUnit.SECONDS.toNanos(39));
+		first.renewAll();
+		assertTrue(lease.isHeld());
+
+		// The next renewal would come after the lease expired
+		clock.set(TimeUnit.SECONDS.toNanos(40));
+		first.renewAll();
+		assertFalse(lease.isHeld());
+	}
+
+	@Test
+	void closeReleasesLeasesInProgress() throws Exception {
+		LeaseManager first = node("first", 60);
+		LeaseManager second = node("second", 60);
+
+		first.acquire(1, LeaseManager.SCAN).orElseThrow();
+		first.acquire(1, LeaseManager.PURGE).orElseThrow();
+		first.close();
+
+		assertTrue(second.acquire(1, LeaseManager.SCAN).isPresent());
+		assertTrue(second.acquire(1, LeaseManager.PURGE).isPresent());
+	}
+
+	@Test
+	void onlyOneNodeScansEachGuild() throws Exception {
+		FakeDiscord discord = new FakeDiscord();
+		List<FakeGuild> guilds = new ArrayList<>();
+		for (int g = 0; g < 4; g++) {
+			FakeGuild guild = discord.guild("guild" + g, 10);
+			for (int m = 0; m < 500; m++)
+				guild.add(g * 1000 + m + 1).roles.addAll(guild.assignable().subList(m % 8, m % 8 + 2));
+			guilds.add(guild);
+		}
+
+		// Every node receives the join of every guild at the same time
+		int nodes = 3;
+		ExecutorService executor = Executors.newFixedThreadPool(nodes);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> futures = new ArrayList<>();
+		List<GuildListener> listeners = new ArrayList<>();
+		try {
+			for (int n = 0; n < nodes; n++) {
+				RoleStorageDatabase database = embedded.open(WorkerSettings.DEFAULT,
+						new MembershipFilter(1000, 0.01, false), StorageMode.ROWS);
+				GuildListener listener = new GuildListener(guild -> true, database,
+						new DepartedMemberCache(100, 1000, 1, TimeUnit.HOURS), node("node" + n, 60), 2, 2);
+				listeners.add(listener);
+
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (FakeGuild guild : guilds)
+						listener.onEvent(discord.guildJoin(guild));
+					return null;
+				}));
+			}
+
+			start.countDown();
+			for (Future<?> future : futures)
+				future.get();
+		} finally {
+			executor.shutdownNow();
+			for (GuildListener listener : listeners)
+				listener.close();
+		}
+
+		for (FakeGuild guild : guilds)
+			assertEquals(1, guild.memberCacheReads.sum(), guild.name);
+		assertEquals(4 * 500 * 2, embedded.queryLong("SELECT COUNT(*) FROM `WatameBot`.`RoleList`"));
+	}
+
+	@Test
+	void disabledCoordinationGrantsEveryLease() {
+		LeaseManager first = node("first", 60, false);
+		LeaseManager second = node("second", 60, false);
+
+		Optional<Lease> lease = first.acquire(1, LeaseManager.SCAN);
+		assertTrue(lease.isPresent());
+		assertTrue(second.acquire(1, LeaseManager.SCAN).isPresent());
+		assertTrue(lease.get().isHeld());
+	}
+
+	/**
+	 * Move the expiry of every lease into the past, as if the lease duration had
+	 * passed since the last renewal.
+	 */
+	private void expireLeases() throws SQLException {
+		embedded.execute("UPDATE `WatameBot`.`RoleStorageLease` SET Expires = TIMESTAMPADD(SECOND, -1, "
+				+ "CURRENT_TIMESTAMP(3))");
+	}
+
+	private LeaseManager node(String owner, long duration) {
+		return node(owner, duration, true);
+	}
+
+	private LeaseManager node(String owner, long duration, boolean enabled) {
+		RoleStorageDatabase database = embedded.open(WorkerSettings.DEFAULT, new MembershipFilter(1000, 0.01, false),
+				StorageMode.ROWS);
+		LeaseManager manager = new LeaseManager(database, owner, duration, enabled, clock::get, false);
+		managers.add(manager);
+		return manager;
+	}
+}
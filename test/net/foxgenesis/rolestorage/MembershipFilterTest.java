@@ -0,0 +1,147 @@
+package net.foxgenesis.rolestorage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import net.foxgenesis.rolestorage.MembershipFilter.Watermark;
+
+/**
+ * Tests for {@link MembershipFilter}.
+ *
+ * @author Ashley
+ *
+ */
+class MembershipFilterTest {
+
+	private static final int ENTRIES = 100_000;
+	private static final double RATE = 0.01;
+	private static final Watermark WATERMARK = new Watermark(42);
+
+	@Test
+	void answersTrueUntilReady() {
+		MembershipFilter filter = new MembershipFilter(ENTRIES, RATE, true);
+
+		assertFalse(filter.isReady());
+		assertTrue(filter.mightContain(1, 2));
+
+		filter.setReady();
+		assertTrue(filter.isReady());
+		assertFalse(filter.mightContain(1, 2));
+		assertEquals(1, filter.getSkippedCount());
+	}
+
+	@Test
+	void disabledFilterAnswersTrue() {
+		MembershipFilter filter = new MembershipFilter(ENTRIES, RATE, false);
+		filter.setReady();
+
+		assertFalse(filter.isReady());
+		assertTrue(filter.mightContain(1, 2));
+		assertEquals(0, filter.getSkippedCount());
+	}
+
+	@Test
+	void hasNoFalseNegatives() {
+		MembershipFilter filter = filled(new Random(1));
+		Random random = new Random(1);
+
+		for (int i = 0; i < ENTRIES; i++)
+			assertTrue(filter.mightContain(random.nextLong(), random.nextLong()));
+		assertEquals(0, filter.getSkippedCount());
+	}
+
+	@Test
+	void falsePositiveRateIsNearTarget() {
+		MembershipFilter filter = filled(new Random(2));
+		Random random = new Random(99);
+
+		int falsePositives = 0;
+		int lookups = 200_000;
+		for (int i = 0; i < lookups; i++) {
+			if (filter.mightContain(random.nextLong(), random.nextLong())) {
+				falsePositives++;
+				filter.recordFalsePositive();
+			}
+		}
+
+		double observed = (double) falsePositives / lookups;
+		assertTrue(observed < RATE * 2, "observed rate " + observed);
+		assertEquals(observed, filter.getFalsePositiveRate(), 1e-9);
+		assertEquals(lookups - falsePositives, filter.getSkippedCount());
+		assertTrue(filter.getExpectedFalsePositiveRate() < RATE * 2,
+				"expected rate " + filter.getExpectedFalsePositiveRate());
+	}
+
+	@Test
+	void saveAndLoadRoundTrips(@TempDir Path dir) throws IOException {
+		Path file = dir.resolve("roles.filter");
+		filled(new Random(3)).save(file, WATERMARK);
+
+		MembershipFilter loaded = new MembershipFilter(ENTRIES, RATE, true);
+		assertTrue(loaded.load(file, WATERMARK));
+		loaded.setReady();
+
+		Random random = new Random(3);
+		for (int i = 0; i < ENTRIES; i++)
+			assertTrue(loaded.mightContain(random.nextLong(), random.nextLong()));
+	}
+
+	@Test
+	void loadMergesIntoExistingBits(@TempDir Path dir) throws IOException {
+		Path file = dir.resolve("roles.filter");
+		MembershipFilter saved = new MembershipFilter(ENTRIES, RATE, true);
+		saved.add(1, 1);
+		saved.save(file, WATERMARK);
+
+		MembershipFilter loaded = new MembershipFilter(ENTRIES, RATE, true);
+		loaded.add(2, 2);
+		assertTrue(loaded.load(file, WATERMARK));
+		loaded.setReady();
+
+		assertTrue(loaded.mightContain(1, 1));
+		assertTrue(loaded.mightContain(2, 2));
+	}
+
+	@Test
+	void loadIgnoresMissingOrMismatchedFiles(@TempDir Path dir) throws IOException {
+		Path file = dir.resolve("roles.filter");
+		assertFalse(new MembershipFilter(ENTRIES, RATE, true).load(file, WATERMARK));
+
+		new MembershipFilter(ENTRIES, RATE, true).save(file, WATERMARK);
+		assertFalse(new MembershipFilter(ENTRIES * 10, RATE, true).load(file, WATERMARK));
+		assertFalse(new MembershipFilter(ENTRIES, RATE, false).load(file, WATERMARK));
+	}
+
+	@Test
+	void loadIgnoresFilesOfChangedRoles(@TempDir Path dir) throws IOException {
+		Path file = dir.resolve("roles.filter");
+		filled(new Random(3)).save(file, WATERMARK);
+
+		// Another writer stored a role while the filter was saved
+		MembershipFilter loaded = new MembershipFilter(ENTRIES, RATE, true);
+		assertFalse(loaded.load(file, new Watermark(43)));
+		loaded.setReady();
+		assertFalse(loaded.mightContain(1, 2));
+
+		assertTrue(new MembershipFilter(ENTRIES, RATE, true).load(file, WATERMARK));
+	}
+
+	/**
+	 * Create a ready filter holding {@link #ENTRIES} random pairs.
+	 */
+	private static MembershipFilter filled(Random random) {
+		MembershipFilter filter = new MembershipFilter(ENTRIES, RATE, true);
+		for (int i = 0; i < ENTRIES; i++)
+			filter.add(random.nextLong(), random.nextLong());
+		filter.setReady();
+		return filter;
+	}
+}
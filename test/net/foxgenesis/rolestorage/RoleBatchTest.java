@@ -0,0 +1,78 @@
+package net.foxgenesis.rolestorage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link RoleBatch}.
+ *
+ * @author Ashley
+ *
+ */
+class RoleBatchTest {
+
+	private static final long[] DATA = { 1, 10, 100, 2, 20, 200, 3, 30, 300, 4, 40, 400 };
+
+	@Test
+	void rowsAreReadAsTriples() {
+		RoleBatch batch = RoleBatch.of(DATA, 4);
+
+		assertEquals(4, batch.size());
+		assertEquals(3, batch.memberID(2));
+		assertEquals(30, batch.guildID(2));
+		assertEquals(300, batch.roleID(2));
+	}
+
+	@Test
+	void subBatchSharesRows() {
+		RoleBatch batch = RoleBatch.of(DATA, 4).subBatch(1, 3);
+
+		assertEquals(2, batch.size());
+		assertEquals(2, batch.memberID(0));
+		assertArrayEquals(new long[] { 2, 20, 200, 3, 30, 300 }, batch.toArray());
+		assertEquals(3, batch.subBatch(1, 2).memberID(0));
+	}
+
+	@Test
+	void rowsOutsideOfBatchAreRejected() {
+		RoleBatch batch = RoleBatch.of(DATA, 4).subBatch(1, 3);
+
+		assertThrows(IndexOutOfBoundsException.class, () -> batch.memberID(2));
+		assertThrows(IndexOutOfBoundsException.class, () -> batch.subBatch(0, 3));
+		assertThrows(IndexOutOfBoundsException.class, () -> RoleBatch.of(DATA, 5));
+	}
+
+	@Test
+	void sortedOrdersByGuildMemberAndRole() {
+		Random random = new Random(7);
+		int size = 1000;
+		long[] data = new long[size * 3];
+		for (int i = 0; i < data.length; i++)
+			data[i] = random.nextInt(8);
+
+		long[] sorted = RoleBatch.of(data, size).sorted().toArray();
+
+		long[][] expected = new long[size][];
+		for (int i = 0; i < size; i++)
+			expected[i] = Arrays.copyOfRange(data, i * 3, i * 3 + 3);
+		Arrays.sort(expected, Comparator.<long[]>comparingLong(row -> row[1]).thenComparingLong(row -> row[0])
+				.thenComparingLong(row -> row[2]));
+
+		assertArrayEquals(Arrays.stream(expected).flatMapToLong(Arrays::stream).toArray(), sorted);
+	}
+
+	@Test
+	void sortedDoesNotModifyBatch() {
+		long[] data = { 2, 1, 1, 1, 1, 1 };
+		RoleBatch.of(data, 2).sorted();
+
+		assertArrayEquals(new long[] { 2, 1, 1, 1, 1, 1 }, data);
+	}
+}
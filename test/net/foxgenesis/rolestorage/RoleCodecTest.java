@@ -0,0 +1,115 @@
+package net.foxgenesis.rolestorage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the on-disk format of {@link RoleCodec}.
+ *
+ * @author Ashley
+ *
+ */
+class RoleCodecTest {
+
+	@Test
+	void emptySetRoundTrips() {
+		assertArrayEquals(new long[0], RoleCodec.decode(RoleCodec.encode(new long[0])));
+		assertArrayEquals(new long[0], RoleCodec.decode(null));
+		assertArrayEquals(new long[0], RoleCodec.decode(new byte[0]));
+	}
+
+	@Test
+	void snowflakesRoundTrip() {
+		Random random = new Random(42);
+
+		for (int size : new int[] { 1, 2, 20, 250 }) {
+			long[] roles = snowflakes(random, size);
+			assertArrayEquals(roles, RoleCodec.decode(RoleCodec.encode(roles)), "size " + size);
+		}
+	}
+
+	@Test
+	void extremeValuesRoundTrip() {
+		long[] roles = { 0, 1, 127, 128, 16383, 16384, Long.MAX_VALUE - 1, Long.MAX_VALUE };
+		assertArrayEquals(roles, RoleCodec.decode(RoleCodec.encode(roles)));
+	}
+
+	@Test
+	void formatIsCountThenDeltas() {
+		// count = 3, first = 5, deltas = 1 and 200 (0xC8 0x01)
+		assertArrayEquals(new byte[] { 3, 5, 1, (byte) 0xC8, 0x01 }, RoleCodec.encode(new long[] { 5, 6, 206 }));
+	}
+
+	@Test
+	void packedFormIsSmallerThanRows() {
+		long[] roles = snowflakes(new Random(7), 20);
+		byte[] packed = RoleCodec.encode(roles);
+
+		// Row layout repeats three 8 byte IDs per role
+		assertTrue(packed.length < roles.length * 8, "packed " + packed.length + " bytes");
+	}
+
+	@Test
+	void truncatedDataIsRejected() {
+		byte[] packed = RoleCodec.encode(snowflakes(new Random(3), 5));
+
+		assertThrows(IllegalArgumentException.class,
+				() -> RoleCodec.decode(Arrays.copyOf(packed, packed.length - 1)));
+	}
+
+	@Test
+	void invalidCountIsRejected() {
+		assertThrows(IllegalArgumentException.class, () -> RoleCodec.decode(new byte[] { 100, 1 }));
+	}
+
+	@Test
+	void unterminatedVarintIsRejected() {
+		byte[] data = new byte[12];
+		Arrays.fill(data, (byte) 0xFF);
+		data[0] = 1;
+
+		assertThrows(IllegalArgumentException.class, () -> RoleCodec.decode(data));
+	}
+
+	@Test
+	void unionMergesAndDeduplicates() {
+		assertArrayEquals(new long[] { 1, 2, 3, 5, 8 }, RoleCodec.union(new long[] { 1, 3, 5 }, new long[] { 2, 3, 8 }));
+		assertArrayEquals(new long[] { 4 }, RoleCodec.union(new long[0], new long[] { 4 }));
+		assertArrayEquals(new long[] { 4 }, RoleCodec.union(new long[] { 4 }, new long[0]));
+	}
+
+	@Test
+	void differenceRemovesPresentRoles() {
+		assertArrayEquals(new long[] { 1, 5 }, RoleCodec.difference(new long[] { 1, 3, 5 }, new long[] { 2, 3, 8 }));
+		assertArrayEquals(new long[0], RoleCodec.difference(new long[] { 3 }, new long[] { 3 }));
+		assertArrayEquals(new long[] { 3 }, RoleCodec.difference(new long[] { 3 }, new long[0]));
+	}
+
+	@Test
+	void mergedSetsRoundTrip() {
+		Random random = new Random(11);
+		long[] a = snowflakes(random, 30);
+		long[] b = snowflakes(random, 30);
+
+		long[] union = RoleCodec.union(a, b);
+		assertEquals(Arrays.stream(union).distinct().count(), union.length);
+		assertArrayEquals(union, RoleCodec.decode(RoleCodec.encode(union)));
+		assertArrayEquals(a, RoleCodec.difference(union, RoleCodec.difference(b, a)));
+	}
+
+	/**
+	 * Create sorted, distinct snowflakes created within a few days of each other.
+	 */
+	private static long[] snowflakes(Random random, int size) {
+		long base = 1_100_000_000_000_000_000L;
+		return random.longs(size * 2L, 0, 1L << 40).map(offset -> base + offset).distinct().limit(size).sorted()
+				.toArray();
+	}
+}
@@ -0,0 +1,321 @@
+package net.foxgenesis.rolestorage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+
+import net.foxgenesis.rolestorage.FakeDiscord.FakeGuild;
+import net.foxgenesis.rolestorage.FakeDiscord.FakeMember;
+import net.foxgenesis.rolestorage.MembershipFilter.Watermark;
+
+import net.dv8tion.jda.api.entities.Role;
+
+/**
+ * Tests of {@link RoleStorageDatabase} against an {@link EmbeddedDatabase}.
+ *
+ * @author Ashley
+ *
+ */
+class RoleStorageDatabaseTest {
+
+	@Test
+	void guildRoleIndexIsCreatedOnce() throws Exception {
+		try (EmbeddedDatabase embedded = EmbeddedDatabase.create()) {
+			open(embedded);
+			open(embedded);
+
+			assertEquals(1, embedded.queryLong("SELECT COUNT(*) FROM INFORMATION_SCHEMA.INDEXES"
+					+ " WHERE LOWER(TABLE_NAME) = 'rolelist' AND LOWER(INDEX_NAME) = 'guildrole'"));
+		}
+	}
+
+	@Test
+	void streamsEveryRow() throws Exception {
+		try (EmbeddedDatabase embedded = EmbeddedDatabase.create()) {
+			for (int member = 1; member <= 3000; member++)
+				embedded.execute("INSERT INTO `WatameBot`.`RoleList` (MemberID, GuildID, Role) VALUES (" + member
+						+ ", " + (member % 3 + 1) + ", 10)");
+
+			Map<Long, Long> perGuild = new HashMap<>();
+			long rows = open(embedded).streamStoredMembers(
+					(guildID, memberID) -> perGuild.merge(guildID, 1L, Long::sum));
+
+			assertEquals(3000, rows);
+			assertEquals(Map.of(1L, 1000L, 2L, 1000L, 3L, 1000L), perGuild);
+		}
+	}
+
+	@Test
+	void writeSessionsOfOtherNodesChangeWatermark() throws Exception {
+		try (EmbeddedDatabase embedded = EmbeddedDatabase.create()) {
+			RoleStorageDatabase database = open(embedded);
+			Watermark first = database.startWriteSession();
+			Optional<Watermark> saved = database.endWriteSession();
+			assertTrue(saved.isPresent());
+			assertNotEquals(first, saved.get());
+
+			// Next start sees no writers since the filter was saved
+			assertEquals(saved.get(), database.startWriteSession());
+
+			// Another node started writing during the session
+			open(embedded).startWriteSession();
+			assertEquals(Optional.empty(), database.endWriteSession());
+			assertEquals(Optional.empty(), database.endWriteSession());
+		}
+	}
+
+	@Test
+	void connectorJStreamsRowByRow() throws SQLException {
+		assertEquals(Integer.MIN_VALUE, RoleStorageDatabase.streamFetchSize(metaData("MySQL Connector/J")));
+		assertEquals(1000, RoleStorageDatabase.streamFetchSize(metaData("MariaDB Connector/J")));
+		assertEquals(1000, RoleStorageDatabase.streamFetchSize(metaData("H2 JDBC Driver")));
+	}
+
+	@Test
+	void migrationResumesAndCompletesOnce() throws Exception {
+		try (EmbeddedDatabase embedded = EmbeddedDatabase.create()) {
+			for (int member = 1; member <= 250; member++)
+				for (int role = 1; role <= 3; role++)
+					insertRow(embedded, member, 1, role);
+
+			// Members copied by an interrupted migration and changed since
+			embedded.execute(EmbeddedDatabase.statement("rolepacked_create_table"));
+			embedded.execute("INSERT INTO `WatameBot`.`RoleListPacked` (MemberID, GuildID, Roles) VALUES (1, 1, X'"
+					+ HexFormat.of().formatHex(RoleCodec.encode(new long[] { 1, 2 })) + "'), (9999, 1, X'"
+					+ HexFormat.of().formatHex(RoleCodec.encode(new long[] { 1 })) + "')");
+
+			RoleStorageDatabase database = open(embedded, StorageMode.PACKED);
+			assertTrue(database.isPackedMigrated());
+			assertEquals(250, embedded.queryLong("SELECT COUNT(*) FROM `WatameBot`.`RoleListPacked`"));
+			assertArrayEquals(new long[] { 1, 2, 3 }, packedRoles(embedded, 1, 1));
+			assertEquals(1, embedded.queryLong("SELECT COUNT(*) FROM `WatameBot`.`RoleStorageMigration`"));
+
+			// Rows left in the row layout are not copied again
+			insertRow(embedded, 1000, 1, 1);
+			assertTrue(open(embedded, StorageMode.PACKED).isPackedMigrated());
+			assertEquals(250, embedded.queryLong("SELECT COUNT(*) FROM `WatameBot`.`RoleListPacked`"));
+		}
+	}
+
+	@Test
+	void writesDuringMigrationReachPackedLayout() throws Exception {
+		try (EmbeddedDatabase embedded = EmbeddedDatabase.create()) {
+			FakeDiscord discord = new FakeDiscord();
+			FakeGuild guild = discord.guild("guild", 4);
+			List<Role> roles = guild.assignable();
+			int members = 3000;
+
+			// Roles 0 to 2 of the first members
+			embedded.execute("INSERT INTO `WatameBot`.`RoleList` (MemberID, GuildID, Role) SELECT M.X, " + guild.id
+					+ ", CASE R.X WHEN 0 THEN " + roles.get(0).getIdLong() + " WHEN 1 THEN " + roles.get(1).getIdLong()
+					+ " ELSE " + roles.get(2).getIdLong() + " END FROM SYSTEM_RANGE(1, " + members * 2
+					+ ") M, SYSTEM_RANGE(0, 2) R");
+
+			RoleStorageDatabase database = embedded.start(WorkerSettings.DEFAULT,
+					new MembershipFilter(1000, 0.01, false), StorageMode.PACKED);
+			BatchWorker worker = database.getBatchWorker();
+
+			// Written to whichever layout is in use when they reach the database
+			for (int member = 1; member <= members; member++) {
+				FakeMember fake = guild.add(member);
+				worker.addMemberRole(fake.member, roles.get(3));
+				worker.removeMemberRole(fake.member, roles.get(0));
+			}
+			for (int member = members + 1; member <= members * 2; member++)
+				database.removeAllMemberRoles(guild.add(member).member);
+			for (int member = members * 2 + 1; member <= members * 3; member++)
+				database.addMemberRoles(guild.add(member).member, List.of(roles.get(3)));
+
+			worker.close();
+			database.awaitMigration();
+			assertTrue(database.isPackedMigrated());
+
+			long[] changed = { roles.get(1).getIdLong(), roles.get(2).getIdLong(), roles.get(3).getIdLong() };
+			Arrays.sort(changed);
+			for (int member = 1; member <= members; member++)
+				assertArrayEquals(changed, packedRoles(embedded, member, guild.id), "member " + member);
+			for (int member = members * 2 + 1; member <= members * 3; member++)
+				assertArrayEquals(new long[] { roles.get(3).getIdLong() }, packedRoles(embedded, member, guild.id));
+			assertEquals(members * 2, embedded.queryLong("SELECT COUNT(*) FROM `WatameBot`.`RoleListPacked`"));
+		}
+	}
+
+	@Test
+	void directWriteRetriesConcurrentInsertOfNewMember() throws Exception {
+		try (EmbeddedDatabase embedded = EmbeddedDatabase.create()) {
+			RoleStorageDatabase database = open(embedded, StorageMode.PACKED);
+			FakeGuild guild = new FakeDiscord().guild("guild", 2);
+			FakeMember member = guild.add(1);
+			List<Role> roles = guild.assignable();
+
+			try (Connection first = embedded.openConnection(); PackedRoleWriter writer = packedWriter(() -> true)) {
+				first.setAutoCommit(false);
+				writer.open(first);
+				writer.insert(RoleBatch.of(new long[] { 1, guild.id, roles.get(0).getIdLong() }, 1));
+
+				// Waits on the uncommitted row, fails once it is committed and retries
+				CompletableFuture<Void> insert = CompletableFuture
+						.runAsync(() -> database.addMemberRoles(member.member, List.of(roles.get(1))));
+				TimeUnit.MILLISECONDS.sleep(200);
+				first.commit();
+
+				insert.get(10, TimeUnit.SECONDS);
+			}
+
+			long[] expected = { roles.get(0).getIdLong(), roles.get(1).getIdLong() };
+			Arrays.sort(expected);
+			assertArrayEquals(expected, packedRoles(embedded, 1, guild.id));
+		}
+	}
+
+	@Test
+	void packedWriterRefusesUnmigratedLayout() throws Exception {
+		try (EmbeddedDatabase embedded = EmbeddedDatabase.create();
+				Connection conn = embedded.openConnection();
+				PackedRoleWriter writer = packedWriter(() -> false)) {
+			assertThrows(SQLNonTransientException.class, () -> writer.open(conn));
+		}
+	}
+
+	@Test
+	void packedWriterMergesMembersOfOneBatch() throws Exception {
+		try (EmbeddedDatabase embedded = EmbeddedDatabase.create()) {
+			open(embedded, StorageMode.PACKED);
+
+			// More members than one read so that the padded read is used
+			int members = PackedRoleWriter.READ_SIZE + 7;
+			long[] first = new long[members * 3];
+			long[] second = new long[members * 3];
+			for (int i = 0; i < members; i++) {
+				first[i * 3] = second[i * 3] = i + 1;
+				first[i * 3 + 1] = second[i * 3 + 1] = 1;
+				first[i * 3 + 2] = 5;
+				second[i * 3 + 2] = 3;
+			}
+
+			write(embedded, writer -> writer.insert(RoleBatch.of(first, members)));
+			write(embedded, writer -> writer.insert(RoleBatch.of(second, members)));
+			assertArrayEquals(new long[] { 3, 5 }, packedRoles(embedded, members, 1));
+
+			write(embedded, writer -> writer.remove(RoleBatch.of(first, members)));
+			assertArrayEquals(new long[] { 3 }, packedRoles(embedded, 1, 1));
+
+			write(embedded, writer -> writer.remove(RoleBatch.of(second, members)));
+			assertEquals(0, embedded.queryLong("SELECT COUNT(*) FROM `WatameBot`.`RoleListPacked`"));
+		}
+	}
+
+	@Test
+	void concurrentInsertOfNewMemberIsRetryable() throws Exception {
+		try (EmbeddedDatabase embedded = EmbeddedDatabase.create()) {
+			open(embedded, StorageMode.PACKED);
+
+			try (Connection first = embedded.openConnection();
+					Connection second = embedded.openConnection();
+					PackedRoleWriter firstWriter = packedWriter(() -> true);
+					PackedRoleWriter secondWriter = packedWriter(() -> true)) {
+				first.setAutoCommit(false);
+				second.setAutoCommit(false);
+				firstWriter.open(first);
+				secondWriter.open(second);
+
+				firstWriter.insert(RoleBatch.of(new long[] { 1, 1, 10 }, 1));
+
+				// Does not see the uncommitted row and waits on its key when inserting
+				CompletableFuture<Void> insert = CompletableFuture.runAsync(() -> {
+					try {
+						secondWriter.insert(RoleBatch.of(new long[] { 1, 1, 20 }, 1));
+					} catch (SQLException e) {
+						throw new CompletionException(e);
+					}
+				});
+				TimeUnit.MILLISECONDS.sleep(200);
+				first.commit();
+
+				ExecutionException e = assertThrows(ExecutionException.class, () -> insert.get(10, TimeUnit.SECONDS));
+				assertInstanceOf(SQLTransactionRollbackException.class, e.getCause());
+				assertEquals("40001", ((SQLException) e.getCause()).getSQLState());
+			}
+		}
+	}
+
+	private static void insertRow(EmbeddedDatabase embedded, long memberID, long guildID, long roleID)
+			throws SQLException {
+		embedded.execute("INSERT INTO `WatameBot`.`RoleList` (MemberID, GuildID, Role) VALUES (" + memberID + ", "
+				+ guildID + ", " + roleID + ")");
+	}
+
+	private static PackedRoleWriter packedWriter(BooleanSupplier writable) {
+		return new PackedRoleWriter(EmbeddedDatabase.statement("rolepacked_get_roles_for_update"),
+				EmbeddedDatabase.statement("rolepacked_insert"), EmbeddedDatabase.statement("rolepacked_update"),
+				EmbeddedDatabase.statement("rolepacked_remove_member"), writable);
+	}
+
+	private static void write(EmbeddedDatabase embedded, WriterOperation operation) throws SQLException {
+		try (Connection conn = embedded.openConnection(); PackedRoleWriter writer = packedWriter(() -> true)) {
+			conn.setAutoCommit(false);
+			writer.open(conn);
+			operation.accept(writer);
+			conn.commit();
+		}
+	}
+
+	private static long[] packedRoles(EmbeddedDatabase embedded, long memberID, long guildID) throws SQLException {
+		try (Connection conn = embedded.openConnection();
+				PreparedStatement statement = conn
+						.prepareStatement(EmbeddedDatabase.statement("rolepacked_get_roles"))) {
+			statement.setLong(1, memberID);
+			statement.setLong(2, guildID);
+			try (ResultSet result = statement.executeQuery()) {
+				return RoleCodec.decode(result.next() ? result.getBytes(1) : null);
+			}
+		}
+	}
+
+	@FunctionalInterface
+	private interface WriterOperation {
+		void accept(RoleWriter writer) throws SQLException;
+	}
+
+	private static RoleStorageDatabase open(EmbeddedDatabase embedded) {
+		return open(embedded, StorageMode.ROWS);
+	}
+
+	private static RoleStorageDatabase open(EmbeddedDatabase embedded, StorageMode mode) {
+		return embedded.open(WorkerSettings.DEFAULT, new MembershipFilter(1000, 0.01, false), mode);
+	}
+
+	private static DatabaseMetaData metaData(String driverName) {
+		return (DatabaseMetaData) Proxy.newProxyInstance(DatabaseMetaData.class.getClassLoader(),
+				new Class<?>[] { DatabaseMetaData.class }, (proxy, method, args) -> {
+					if (method.getName().equals("getDriverName"))
+						return driverName;
+					throw new UnsupportedOperationException(method.getName());
+				});
+	}
+}
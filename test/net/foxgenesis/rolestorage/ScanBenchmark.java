@@ -0,0 +1,98 @@
+package net.foxgenesis.rolestorage;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+import net.foxgenesis.rolestorage.FakeDiscord.FakeGuild;
+import net.foxgenesis.rolestorage.FakeDiscord.FakeMember;
+
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+
+/**
+ * Scan phase of a guild scan for an increasing number of scan threads, up to
+ * the number of available processors. Scanned roles are queued on lanes that
+ * never write, so only the scan itself is measured.
+ * <p>
+ * Run with {@code mvn test -Pbench}.
+ * </p>
+ *
+ * @author Ashley
+ *
+ */
+@Tag("benchmark")
+class ScanBenchmark {
+
+	private static final int MEMBERS = 200_000;
+	private static final int ROLES = 20;
+	private static final int ROLES_PER_MEMBER = 5;
+	private static final int LANES = 2;
+	private static final int WARMUP = 3;
+	private static final int RUNS = 7;
+
+	@Test
+	void scanSpeedupByThreads(TestReporter reporter) throws Exception {
+		FakeGuild guild = new FakeDiscord().guild("guild", ROLES);
+		List<Role> roles = guild.assignable();
+		SplittableRandom random = new SplittableRandom(42);
+		for (int i = 1; i <= MEMBERS; i++) {
+			FakeMember member = guild.add(i);
+			for (int r = 0; r < ROLES_PER_MEMBER; r++)
+				member.roles.add(roles.get(random.nextInt(roles.size())));
+		}
+		List<Member> members = guild.guild.getMemberCache().asList();
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		TreeSet<Integer> threads = new TreeSet<>();
+		for (int t = 1; t < cores; t *= 2)
+			threads.add(t);
+		threads.add(cores);
+
+		StringBuilder table = new StringBuilder("%n%-8s %10s %14s %8s%n".formatted("Threads", "Median", "Members/s",
+				"Speedup"));
+		double single = 0;
+		for (int t : threads) {
+			double median = medianScan(guild, members, t);
+			if (t == 1)
+				single = median;
+
+			table.append("%-8d %8.2f ms %14.0f %7.2fx%n".formatted(t, median, MEMBERS / (median / 1000D),
+					single / median));
+		}
+		table.append("%d available processors".formatted(cores));
+		reporter.publishEntry("Scan speedup", table.toString());
+	}
+
+	/**
+	 * Scan all members a number of times and get the median scan time.
+	 *
+	 * @return The median scan time in milliseconds
+	 */
+	private static double medianScan(FakeGuild guild, List<Member> members, int threads) throws Exception {
+		double[] times = new double[RUNS];
+
+		try (GuildListener listener = GuildListenerTest.listener(threads)) {
+			for (int run = -WARMUP; run < RUNS; run++) {
+				BatchWorker[] lanes = new BatchWorker[LANES];
+				for (int i = 0; i < lanes.length; i++)
+					lanes[i] = GuildListenerTest.idleLane();
+
+				long start = System.nanoTime();
+				listener.scanMembers(guild.guild, members, lanes, GuildListenerTest.lease(guild));
+				long elapsed = System.nanoTime() - start;
+
+				if (run >= 0)
+					times[run] = elapsed / 1_000_000D;
+			}
+		}
+
+		Arrays.sort(times);
+		return times[RUNS / 2];
+	}
+}